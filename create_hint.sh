@@ -0,0 +1,19 @@
+#!/bin/bash
+
+# es wird die Verzeichnisstruktur von IntelliJ IDEA angenommen
+# für Eclipse sind die Verzeichnisse entsprechend anzupassen
+
+video=$1
+hint=${2:-${video%.mjpeg}.hint}
+
+src=src
+bin=out/production/RTSP-Streaming
+
+
+# Kompilierung
+echo "compile classes..."
+javac -cp $src ${src}/HintTrackWriter.java  -d $bin
+
+# Start
+echo "convert $video to $hint..."
+java -cp $bin  HintTrackWriter $video $hint
@@ -11,6 +11,7 @@ import java.text.DecimalFormat;
 import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.util.List;
 import javax.swing.*;
 import javax.swing.Timer;
@@ -36,6 +37,7 @@ public class Client {
   JLabel pufferLabel = new JLabel("Puffer: "); // Statistics
   JLabel statsLabel = new JLabel("Statistics: "); // Statistics
   JLabel fecLabel = new JLabel("FEC: "); // Statistics
+  JLabel timingLabel = new JLabel("Latenz: "); // Statistics
   ImageIcon icon;
   JTextField textField = new JTextField("mystream", 30);
   JProgressBar progressBuffer = new JProgressBar(0, 100);
@@ -47,10 +49,14 @@ public class Client {
   DatagramSocket RTPsocket; // socket to be used to send and receive UDP packets
   //DatagramSocket FECsocket; // socket to be used to send and receive UDP packets for FEC
   FecHandler fec;
+  FrameDecoder decoder; // decodes the frames ahead of playout
+  PacketBufferPool packetPool = new PacketBufferPool(); // receive buffers of the RTP packets
+  FrameTiming timing; // latency and pacing from the header extensions
+  long ssrc = -1; // SSRC of the session from the Transport header, -1 if unknown
+  int nrForeign; // dropped packets of other sources
   static int RTP_RCV_PORT = 25000; // port where the client will receive the RTP packets
   // static int FEC_RCV_PORT = 25002; // port where the client will receive the RTP packets
 
-  static final int MAX_FRAME_SIZE = 65536;
   static final int RCV_RATE = 2; // interval for receiving loop
   int jitterBufferSize = 50; // size of the input buffer => start delay
 
@@ -113,11 +119,12 @@ public class Client {
     iconLabel.setIcon(null);
 
     // Text
-    statsPanel.setLayout(new GridLayout(5, 0));
+    statsPanel.setLayout(new GridLayout(6, 0));
     statsPanel.add(statusLabel);
     statsPanel.add(pufferLabel);
     statsPanel.add(statsLabel);
     statsPanel.add(fecLabel);
+    statsPanel.add(timingLabel);
     statsPanel.add(checkBoxFec);
 
     inputPanel.setLayout(new BorderLayout());
@@ -214,6 +221,12 @@ public class Client {
 
           // Init the FEC-handler
           fec = new FecHandler( checkBoxFec.isSelected() );
+          // Init the decode stage
+          if (decoder != null) decoder.shutdown();
+          decoder = FrameDecoder.create();
+          timing = new FrameTiming();
+          ssrc = -1;
+          nrForeign = 0;
           // Init the play timer
           timerPlay = new Timer(FRAME_RATE, new timerPlayListener());
           timerPlay.setCoalesce(true); // combines events
@@ -323,6 +336,10 @@ public class Client {
         // stop the timer
         timer.stop();
         timerPlay.stop();
+        decoder.shutdown(); // the worker threads end with the session, SETUP creates a new one
+        decoder = null;
+        fec.clear();
+        packetPool.reportLeaks();
 
         RTPsocket.close();
         // exit
@@ -357,13 +374,21 @@ public class Client {
 
   /** Handler for the timer event fetches the RTP-packets and displays the images */
   class timerListener implements ActionListener {
-    byte[] buf = new byte[MAX_FRAME_SIZE]; // allocate memory to receive UDP data from server
+    DatagramPacket rcvDp = new DatagramPacket(new byte[0], 0); // RTP needs UDP socket
 
     public void actionPerformed(ActionEvent e) {
-      DatagramPacket rcvDp = new DatagramPacket(buf, buf.length); // RTP needs UDP socket
+      // pooled buffer to receive UDP data from server, the packet is a view of it
+      PacketBufferPool.Buffer buffer = packetPool.acquire();
+      rcvDp.setData(buffer.array());
       try {
         RTPsocket.receive(rcvDp); // receive the DP from the socket:
-        RTPpacket rtp = new RTPpacket(rcvDp.getData(), rcvDp.getLength()); // for the rcvDp
+        RTPpacket rtp = new RTPpacket(buffer, rcvDp.getLength());
+        buffer = null; // taken over by the packet
+        if (ssrc >= 0 && (rtp.getssrc() & 0xFFFFFFFFL) != ssrc) {
+          nrForeign++; // e.g. a former session of the server
+          rtp.release();
+          return;
+        }
 
         // print important header fields of the RTP packet received:
         System.out.println(
@@ -379,12 +404,15 @@ public class Client {
 
         // TASK_F remove comment for debugging
         // rtp.printheader(); // print rtp header bitstream for debugging
+        timing.onPacket(rtp, System.currentTimeMillis());
         fec.rcvRtpPacket(rtp); // stores the received RTP packet in jitter buffer
 
       } catch (InterruptedIOException iioe) {
         System.out.println("Nothing to read");
       } catch (IOException ioe) {
         System.out.println("Exception caught: " + ioe);
+      } finally {
+        if (buffer != null) buffer.release(); // nothing received
       }
     }
   }
@@ -392,10 +420,10 @@ public class Client {
   /** Displays one frame if available */
   class timerPlayListener implements ActionListener {
     boolean videoStart = false;
+    JpegFrame lastFrame; // last combined frame, source of lost restart intervals
+    BufferedImage displayed; // image shown by the iconLabel
 
     public void actionPerformed(ActionEvent e) {
-      byte[] payload;
-
       // check buffer size and start if filled
       int puffer = fec.getSeqNr() - fec.getPlayCounter();
       progressBuffer.setValue(puffer);
@@ -407,35 +435,45 @@ public class Client {
         return;
       } else videoStart = true;
       // check for end of display JPEGs
-      if (puffer <= 0) { // buffer empty -> finish
+      if (puffer <= 0 && decoder.isEmpty()) { // buffer empty -> finish
         statusLabel.setText("End of Stream");
         return;
       }
 
       // System.out.println("----------------- Play timer --------------------");
+      // keep the decoder busy with the next frames from the jitter buffer
+      while (!decoder.isFull() && fec.getSeqNr() - fec.getPlayCounter() > 0) {
+        decoder.submit(nextFrame());
+      }
+
+      // display the decoded image of this tick, lost frames keep the last image
+      BufferedImage image = decoder.poll();
+      if (image == null) return;
+      if (icon == null) {
+        icon = new ImageIcon(image);
+        iconLabel.setIcon(icon);
+      } else {
+        icon.setImage(image);
+        iconLabel.repaint();
+      }
+      decoder.release(displayed); // the former image is reused for decoding
+      displayed = image;
+    }
+
+    /** @return Next frame from the jitter buffer, or null if it is lost */
+    private JpegFrame nextFrame() {
       // get a list of rtps from jitter buffer
       List<RTPpacket> rtpList = fec.getNextRtpList();
+      if (rtpList == null) return null;
 
-      // TODO decoding of incomplete list to show fragments of pictures instead of discarding
-      if (rtpList == null) return;
-
-      payload = JpegFrame.combineToOneImage(rtpList);
+      // incomplete frames are completed with the restart intervals of the last frame
+      JpegFrame frame = JpegFrame.combineWithConcealment(rtpList, lastFrame);
+      rtpList.forEach(RTPpacket::release); // the frame is copied
+      if (frame == null) return null;
+      lastFrame = frame;
 /*      System.out.println("Display TS: " + (0xFFFFFFFFL & rtpList.get(0).TimeStamp)
           + " size: " + payload.length);*/
-
-      try {
-        // get an Image object from the payload bitstream
-        Toolkit toolkit = Toolkit.getDefaultToolkit();
-        Image image = toolkit.createImage(payload, 0, payload.length);
-
-        // display the image as an ImageIcon object
-        icon = new ImageIcon(image);
-        // System.out.println("new imageicon");
-        iconLabel.setIcon(icon);
-
-      } catch (RuntimeException rex) {
-        rex.printStackTrace();
-      }
+      return frame;
     }
 
       //TASK_F complete the statistics
@@ -446,6 +484,8 @@ public class Client {
               + (fec.getSeqNr() - fec.getPlayCounter()) //
               + " aktuelle Nr. / Summe empf.: "
               + fec.getSeqNr() + " / " + fec.getNrReceived()
+              + " Dekodierer / verspätet: "
+              + decoder.getDepth() + " / " + decoder.getNrLate()
               + "");
       statsLabel.setText(
           "<html>Abspielzähler / verlorene Medienpakete // Bilder / verloren: "
@@ -467,6 +507,20 @@ public class Client {
               + fec.getNrNotCorrected()
               + "  Ratio: "
               + ratio);
+
+      timingLabel.setText(
+          "Latenz akt. / Mittel / max.: "
+              + timing.getLatency()
+              + " / "
+              + df.format(timing.getAvgLatency())
+              + " / "
+              + timing.getMaxLatency()
+              + " ms  Jitter: "
+              + df.format(timing.getJitter())
+              + " ms  Bilder übersprungen / fremd: "
+              + timing.getNrFramesSkipped()
+              + " / "
+              + nrForeign);
     }
   }
 
@@ -527,7 +581,13 @@ public class Client {
             break;
 
           case "transport:":
-            System.out.println();
+            // the SSRC identifies the packets of this session
+            for (String parameter : headerField.nextToken().split(";")) {
+              if (parameter.startsWith("ssrc=")) {
+                ssrc = Long.parseLong(parameter.substring(5), 16);
+                System.out.println("SSRC: " + parameter.substring(5));
+              }
+            }
             break;
 
           default:
@@ -52,6 +52,7 @@
  * @version 1.0
  */
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class FECpacket extends RTPpacket {
@@ -59,7 +60,11 @@ public class FECpacket extends RTPpacket {
   private static final int ULP_HEADER_SIZE0 = 4;
   private static final int ULP_HEADER_SIZE1 = 8;
   int headerAll;
-  int payloadFec_size;
+
+  // XOR of the protected payloads: at the receiver a view of the received packet, which is copied
+  // before the first XOR, at the sender an own array
+  ByteBuffer fecPayload = ByteBuffer.allocate(0);
+  boolean ownPayload; // fecPayload may be modified
 
   // *** FEC-Header *************************
   byte[] fecHeader = new byte[FEC_HEADER_SIZE];
@@ -95,7 +100,7 @@ public class FECpacket extends RTPpacket {
    * @param snBase base for sequence nr.
    */
   public FECpacket(int PType, int Framenb, int Time, int maxGroupSize, int snBase) {
-    super(PType, Framenb, Time, new byte[0], 0);
+    super(PType, Framenb, Time, ByteBuffer.allocate(0));
     setFecHeader(maxGroupSize, snBase);
     setUlpLevelHeader(0,0,maxGroupSize);
   }
@@ -103,22 +108,18 @@ public class FECpacket extends RTPpacket {
   // ##############################################################################################
 
   /**
-   * Constructor for Receiver
+   * Constructor for Receiver, the FEC packet is a view of the received packet
    *
-   * @param packet bitstream
-   * @param packet_size size
+   * @param rtp received packet, its payload includes the FEC header
    */
-  public FECpacket(byte[] packet, int packet_size) {
-    // packet includes FEC header
-    // builds the RTP header
-    super(packet, packet_size);
+  public FECpacket(RTPpacket rtp) {
+    // shares the RTP header and payload
+    super(rtp);
 
     extractFecHeader(); // sets the header arrays and the variables
-    // removes the fec-header from the payload
-    byte[] buf = new byte[payload.length- FEC_HEADER_SIZE - ulpLevelHeader.length];
-    System.arraycopy(payload,FEC_HEADER_SIZE+ulpLevelHeader.length,
-        buf, 0, payload.length-FEC_HEADER_SIZE-ulpLevelHeader.length);
-    payload = buf;
+    // the FEC payload follows the fec-header
+    headerAll = header.limit() + FEC_HEADER_SIZE + ulpLevelHeader.length;
+    fecPayload = payload.duplicate().position(FEC_HEADER_SIZE + ulpLevelHeader.length).slice();
   }
 
   // ##############################################################################################
@@ -196,7 +197,6 @@ public class FECpacket extends RTPpacket {
       ulpLevelHeader[7] = (byte) (mask >> 16);
     }
     headerAll = HEADER_SIZE + FEC_HEADER_SIZE + ulpLevelHeader.length;
-    payloadFec_size = payload_size - FEC_HEADER_SIZE - ulpLevelHeader.length;
   }
 
   /**
@@ -224,22 +224,85 @@ public class FECpacket extends RTPpacket {
    */
   @Override
   public byte[] getpacket() {
-    // System.out.println("FEC packet: " + payload_size + " " + payload.length);
-    byte[] packet = new byte[payload_size + headerAll];
-    setRtpHeader(); // set RTP Header again because of changing time stamp
-    // RTP Header from array
-    System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
-    // FEC Header from array
-    System.arraycopy(fecHeader, 0, packet, HEADER_SIZE, FEC_HEADER_SIZE);
-    // ULP Header from array
-    System.arraycopy(
-        ulpLevelHeader, 0, packet, HEADER_SIZE + FEC_HEADER_SIZE, ulpLevelHeader.length);
-    // Payload starts from 0
-    System.arraycopy(
-        payload, 0, packet, headerAll, payload_size);
+    // System.out.println("FEC packet: " + fecPayload.limit());
+    byte[] packet = new byte[getlength()];
+    getpacket(packet);
     return packet;
   }
 
+  /**
+   * Writes the whole FEC packet including RTP header into an array, e.g. a pooled buffer
+   *
+   * @param packet destination, large enough for the packet
+   * @return length of the packet
+   */
+  @Override
+  public int getpacket(byte[] packet) {
+    getHeaders(packet);
+    fecPayload.get(0, packet, headerAll, fecPayload.limit());
+    return getlength();
+  }
+
+  /**
+   * Views of the headers and the FEC payload for a gathering write, the payload is not copied
+   *
+   * @return RTP-, FEC- and ULP-Header, FEC payload
+   */
+  @Override
+  public ByteBuffer[] getBuffers() {
+    return getBuffers(new byte[headerAll]);
+  }
+
+  /**
+   * Views of the headers and the FEC payload for a gathering write, the payload is not copied
+   *
+   * @param headers destination of the headers, e.g. a pooled buffer
+   * @return RTP-, FEC- and ULP-Header in the array, FEC payload
+   */
+  public ByteBuffer[] getBuffers(byte[] headers) {
+    getHeaders(headers);
+    return new ByteBuffer[] {ByteBuffer.wrap(headers, 0, headerAll), fecPayload.duplicate()};
+  }
+
+  /**
+   * Views for a gathering write of a FEC packet shared by several sessions, e.g. of a live frame,
+   * with the RTP fields of one session. The shared packet protects packets with time stamp 0 and
+   * snBase relative to the frame, the packets of the session have the same time stamp each.
+   *
+   * @param headers destination of the headers, e.g. a pooled buffer
+   * @param seqNr sequence number of the FEC packet in the session
+   * @param snOffset sequence number of the session for the shared sequence number 0
+   * @param timestamp time stamp of the protected packets in the session
+   * @param ssrc SSRC of the session
+   * @return RTP-, FEC- and ULP-Header in the array, FEC payload
+   */
+  public ByteBuffer[] getBuffers(byte[] headers, int seqNr, int snOffset, int timestamp, int ssrc) {
+    ByteBuffer[] buffers = getBuffers(headers);
+    ByteBuffer bits = buffers[0];
+    int rtpHeader = header.limit();
+    bits.putShort(2, (short) seqNr);
+    bits.putInt(4, timestamp);
+    bits.putInt(8, ssrc);
+    bits.putShort(rtpHeader + 2, (short) (snBase + snOffset));
+    // the XOR of an odd number of equal time stamps is the time stamp, of an even number 0
+    if (fecGroupSize % 2 == 1) bits.putInt(rtpHeader + 4, tsRecovery ^ timestamp);
+    return buffers;
+  }
+
+  /** Writes RTP-, FEC- and ULP-Header to the start of the array */
+  private void getHeaders(byte[] packet) {
+    int rtpHeader = header.limit();
+    header.get(0, packet, 0, rtpHeader);
+    System.arraycopy(fecHeader, 0, packet, rtpHeader, FEC_HEADER_SIZE);
+    System.arraycopy(
+        ulpLevelHeader, 0, packet, rtpHeader + FEC_HEADER_SIZE, ulpLevelHeader.length);
+  }
+
+  @Override
+  public int getlength() {
+    return headerAll + fecPayload.limit();
+  }
+
 
   // ##############################################################################################
 
@@ -252,26 +315,25 @@ public class FECpacket extends RTPpacket {
    *
    */
   private void extractFecHeader() {
-    // byte[] payload = fec.getpayload();
     // copy the FEC Header als part of the RTP payload
-    System.arraycopy(payload, 0, fecHeader, 0, FEC_HEADER_SIZE);
+    payload.get(0, fecHeader, 0, FEC_HEADER_SIZE);
     L = (fecHeader[0] & 0b01000000) >> 6;
-    // ignore P,X,CC,M yet
+    // ignore P,X,CC yet, M is needed to find the last fragment of a frame
+    M = (0x80 & fecHeader[1]) >> 7;
     ptRecovery = 0x7F & fecHeader[1];
     snBase = (0xFF & fecHeader[2]) * 256 + (0xFF & fecHeader[3]);
-    // TODO check if correct
     tsRecovery =
-        (0xFFFFFF & fecHeader[4]) * 0xFFFF
-            + (0xFF & fecHeader[5])
-            + (0xFF & fecHeader[6]) * 256
-            + (0xFF & fecHeader[7]);
+        (0xFF & fecHeader[4]) << 24
+            | (0xFF & fecHeader[5]) << 16
+            | (0xFF & fecHeader[6]) << 8
+            | (0xFF & fecHeader[7]);
     lengthRecovery = (0xFF & fecHeader[8]) * 256 + (0xFF & fecHeader[9]);
 
     // ULP Level Header
     if (L == 0) ulpLevelHeader = new byte[ULP_HEADER_SIZE0];
     else ulpLevelHeader = new byte[ULP_HEADER_SIZE1];
     // copy the ULP header
-    System.arraycopy(payload, FEC_HEADER_SIZE, ulpLevelHeader, 0, ulpLevelHeader.length);
+    payload.get(FEC_HEADER_SIZE, ulpLevelHeader, 0, ulpLevelHeader.length);
     protectionLength = (0xFF & ulpLevelHeader[0]) * 256 + (0xFF & ulpLevelHeader[1]);
     // Small mask
     mask = ((0xFFL & ulpLevelHeader[2]) << 56) + ((0xFFL & ulpLevelHeader[3]) << 48);
@@ -297,33 +359,30 @@ public class FECpacket extends RTPpacket {
    * @param rtp RTP packet
    */
   public void addRtp(RTPpacket rtp) {
-    // sets the payload
-    byte[] data = rtp.getpayload();
+    int length = rtp.getpayload_length();
 
     // XOR actual data size
-    lengthRecovery ^= data.length;
-
-    // init of buffer and length recovery
-    if (payload.length == 0) {
-      payload = data;
-    } else {
-      // switch array so that payload is longest of all packets
-      if (data.length > payload.length) {
-        byte[] buf = data;
-        data = payload;
-        payload = buf;
-      }
-      for (int i = 0; i < data.length; i++) {
-        payload[i] ^= data[i];
-      }
+    lengthRecovery ^= length;
+
+    // the XOR payload is as long as the longest packet, views of received packets are not changed
+    if (!ownPayload || length > fecPayload.limit()) {
+      byte[] buf = new byte[Math.max(length, fecPayload.limit())];
+      fecPayload.get(0, buf, 0, fecPayload.limit());
+      fecPayload = ByteBuffer.wrap(buf);
+      ownPayload = true;
+    }
+    // views of payload header and payload, not copied
+    int offset = 0;
+    for (ByteBuffer data : rtp.getPayloadBuffers()) {
+      xor(data, offset);
+      offset += data.limit();
     }
-    payload_size = payload.length;
 
     // Header XOR -> P, X, CC, M, PT, TS
-    P ^= rtp.Padding;
-    X ^= rtp.Extension;
-    CC ^= rtp.CC;
-    M ^= rtp.Marker;
+    P ^= rtp.getpadding();
+    X ^= rtp.getextension();
+    CC ^= rtp.getcc();
+    M ^= rtp.getmarker();
     ptRecovery ^= rtp.getpayloadtype();
     tsRecovery ^= rtp.gettimestamp();
 
@@ -331,6 +390,18 @@ public class FECpacket extends RTPpacket {
   }
 
 
+  /** XORs the data into the FEC payload from the offset, 8 bytes at once and the rest bytewise */
+  private void xor(ByteBuffer data, int offset) {
+    int length = data.limit();
+    int i = 0;
+    for (; i + Long.BYTES <= length; i += Long.BYTES) {
+      fecPayload.putLong(offset + i, fecPayload.getLong(offset + i) ^ data.getLong(i));
+    }
+    for (; i < length; i++) {
+      fecPayload.put(offset + i, (byte) (fecPayload.get(offset + i) ^ data.get(i)));
+    }
+  }
+
   /**
    * Generates the lost RTP packet from the XORed values
    * @return rtp
@@ -338,7 +409,10 @@ public class FECpacket extends RTPpacket {
   public RTPpacket getLostRtp(int snr) {
     // TODO get the correct SNr
     // if (snr==4) System.out.println("FECPacket.java");
-    RTPpacket newRTP = new RTPpacket(ptRecovery, snr  ,tsRecovery, payload, lengthRecovery);
+    RTPpacket newRTP =
+        new RTPpacket(ptRecovery, snr, tsRecovery, fecPayload.duplicate().limit(lengthRecovery));
+    newRTP.setmarker(M);
+    newRTP.setssrc(getssrc()); // the FEC stream shares the SSRC of the media (RFC 5109)
 
     return newRTP;
     // return new RTPpacket(ptRecovery, snr  ,tsRecovery, payload, lengthRecovery);
@@ -356,6 +430,6 @@ public class FECpacket extends RTPpacket {
     System.out.println("FEC-Level-Header");
     printheader(ulpLevelHeader.length, ulpLevelHeader);
     System.out.println("FEC-Payload");
-    printheader(3, payload);
+    printheader(3, fecPayload);
   }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +32,9 @@ public class FecHandler {
   HashMap<Integer, List<Integer>> tsList = new HashMap<>(); // media packets with same ts
 
   int playCounter = 0; // SNr of RTP-packet to play next, initialized with first received packet
+  int lastTs; // time stamp of the last delivered frame
+  int frameDuration; // time stamp difference of the last two frames, 0 if unknown
+  boolean lastMarker = true; // last delivered frame ended with the marker bit
 
   // *** RTP-Header ************************
   static final int MJPEG = 26;
@@ -41,6 +45,7 @@ public class FecHandler {
   // *** FEC Parameters -> Sender ************
   static final int maxGroupSize = 48;
   int fecGroupSize; // FEC group size
+  volatile int nextGroupSize; // set by another thread, applied with the next group, 0 if none
   int fecGroupCounter;
 
   // -> Receiver
@@ -94,14 +99,20 @@ public class FecHandler {
   public void setRtp(RTPpacket rtp) {
     // init new FEC packet if necessary
     if (fec == null) {
+      int size = nextGroupSize;
+      if (size > 0) {
+        fecGroupSize = size; // only between the groups, the mask matches the packets
+        nextGroupSize = 0;
+      }
       fec =
           new FECpacket(
               FEC_PT, fecSeqNr, rtp.gettimestamp(), fecGroupSize, rtp.getsequencenumber());
       fec.setUlpLevelHeader(0, 0, fecGroupSize);
+      fec.setssrc(rtp.getssrc()); // same source as the media packets
     }
 
     fecGroupCounter++; // count the packets in the group
-    fec.TimeStamp = rtp.gettimestamp(); // adjust the time stamp to the last packet in the group
+    fec.settimestamp(rtp.gettimestamp()); // adjust the time stamp to the last packet in the group
     fec.addRtp(rtp);
   }
 
@@ -116,13 +127,42 @@ public class FecHandler {
    * @return Bitstream of FEC-Packet including RTP-Header
    */
   public byte[] getPacket() {
+    byte[] buf = new byte[fec.getlength()];
+    getPacket(buf);
+    return buf;
+  }
+
+  /**
+   * *** Sender *** Writes the FEC-RTP-Packet into an array, e.g. a pooled buffer, and resets the
+   * FEC-group
+   *
+   * @param buf destination of the FEC-Packet including RTP-Header
+   * @return length of the packet
+   */
+  public int getPacket(byte[] buf) {
     // fec.printHeaders();
     // Adjust and reset all involved variables
     fecSeqNr++;
     fecGroupCounter = 0;
-    byte[] buf = fec.getpacket();
+    int length = fec.getpacket(buf);
     fec = null; // reset fec
-    return buf;
+    return length;
+  }
+
+  /**
+   * *** Sender *** Writes the headers of the FEC-RTP-Packet into an array, e.g. a pooled buffer,
+   * and resets the FEC-group. The FEC payload is not copied.
+   *
+   * @param buf destination of RTP-, FEC- and ULP-Header
+   * @return Views of the headers and the FEC payload for a gathering write
+   */
+  public ByteBuffer[] getPacketBuffers(byte[] buf) {
+    // Adjust and reset all involved variables
+    fecSeqNr++;
+    fecGroupCounter = 0;
+    ByteBuffer[] buffers = fec.getBuffers(buf);
+    fec = null; // reset fec
+    return buffers;
   }
 
   /** Reset of fec group and variables */
@@ -130,19 +170,26 @@ public class FecHandler {
     // TODO
   }
 
+  /** @return FEC group size of the current group */
+  public int getFecGroupSize() {
+    return fecGroupSize;
+  }
+
   /**
-   * *** Sender *** Posibility to set the group at run time
+   * *** Sender *** Posibility to set the group at run time, e.g. by the GUI thread. The sending
+   * thread applies the size when it starts the next group.
    *
    * @param size FEC Group
    */
   public void setFecGroupSize(int size) {
-    fecGroupSize = size;
+    nextGroupSize = size;
   }
 
   // *************** Receiver PUT *****************************************************************
 
   /**
-   * Handles and store a received media packet
+   * Handles and store a received media packet. The jitter buffer takes over the reference of the
+   * caller to a pooled packet.
    *
    * @param rtp the received RTP
    */
@@ -153,7 +200,8 @@ public class FecHandler {
     // separate Media an FEC
     if (rtp.getpayloadtype() == MJPEG) {
       nrReceived++; // count only media
-      rtpStack.put(seqNr, rtp);
+      RTPpacket duplicate = rtpStack.put(seqNr, rtp);
+      if (duplicate != null) duplicate.release();
       lastReceivedSeqNr = seqNr;
       // create list of RTPs with same time stamp
       int ts = rtp.gettimestamp();
@@ -175,14 +223,15 @@ public class FecHandler {
    */
   private void rcvFecPacket(RTPpacket rtp) {
     // build fec from rtp
-    fec = new FECpacket(rtp.getpacket(), rtp.getpacket().length);
+    fec = new FECpacket(rtp); // view of the received packet
     // TASK remove comment for debugging
     // fec.printHeaders();
 
     // stores fec
     int seqNrFec = fec.getsequencenumber();
     fecSeqNr = seqNrFec; // for deletion of fec storage
-    fecStack.put(seqNrFec, fec);
+    FECpacket duplicate = fecStack.put(seqNrFec, fec);
+    if (duplicate != null) duplicate.release();
 
     // get RTP List
     ArrayList<Integer> list = fec.getRtpList();
@@ -202,7 +251,7 @@ public class FecHandler {
    */
   public byte[] getNextFrame() {
     playCounter++;
-    if (playCounter > lastReceivedSeqNr) {
+    if (isBefore(lastReceivedSeqNr, playCounter)) {
       return null; // Jitter buffer is empty -> finish
     }
     RTPpacket rtp = getNextRtp();
@@ -242,7 +291,9 @@ public class FecHandler {
       if (useFec && checkCorrection(snr)) {
         nrCorrected++;
         //System.out.println("---> FEC: correctable: " + snr);
-        return correctRtp(snr);
+        // stored, because the FEC packet can be used only once
+        rtp = correctRtp(snr);
+        rtpStack.put(snr, rtp);
       } else {
         nrNotCorrected++;
         //System.err.println("---> FEC: not correctable: " + snr);
@@ -253,41 +304,86 @@ public class FecHandler {
 
   /**
    * Delivers a set of RTPs with the same Time stamp the set is in the correct order concerning the
-   * sequence number
+   * sequence number. The fragments of a frame have consecutive sequence numbers, the last one
+   * carries the marker bit. Lost fragments are missing in the list, so the receiver can conceal
+   * them.
+   *
+   * <p>The packets of the list are retained for the caller, who releases them after use.
    *
-   * @return List
+   * @return List or null, if no packet of the frame is available
    */
   public ArrayList<RTPpacket> getNextRtpList() {
     nrFramesRequested++;
     playCounter++;
     ArrayList<RTPpacket> list = new ArrayList<>();
     RTPpacket rtp = getNextRtp();
-    // check for lost rtp
+    // lost packets in front belong to this frame, if the last frame was finished by its marker
+    boolean complete = rtp != null || !lastMarker;
+    // first packet lost -> the frame starts with the next available packet
+    int snr = playCounter;
+    while (rtp == null && isBefore(snr, lastReceivedSeqNr)) {
+      rtp = getRtp(++snr);
+    }
     if (rtp == null) {
       nrFramesLost++;
       return null;
     }
-    list.add(rtp);
     int ts = rtp.gettimestamp();
-    List<Integer> rtpList = tsList.get(ts); // list of RTPs with same time stamp
-    if (rtpList == null) return list; // if list is empty
-
-    //TODO lost RTPs are not in the list but could perhaps be corrected -> check for snr
-    //add all RTPs but the first which is already included
-    for (int i = 1; i < rtpList.size(); i++) {
-      rtp = getRtp(rtpList.get(i));
-      if (rtp == null){
-        // try to correct rtppacket
-      }
-      list.add( rtp );
+    // a gap of more than one frame period means that whole frames are lost, one per call
+    if (frameDuration > 0 && ts - lastTs > frameDuration * 3 / 2) {
+      playCounter = snr - 1;
+      lastTs += frameDuration;
+      nrFramesLost++;
+      return null;
     }
-    playCounter = playCounter + rtpList.size()-1; // set to snr of last packet
-    //TODO if list is fragmented return null or implement JPEG error concealment
+    playCounter = snr;
+    list.add(rtp);
 
+    List<Integer> rtpList = tsList.get(ts); // list of received RTPs with same time stamp
+    if (rtpList != null) {
+      // distance of the highest received sequence number of the frame, regarding the overflow
+      int last = 0;
+      for (int nr : rtpList) {
+        int distance = (nr - playCounter) & 0xFFFF;
+        if (distance < 0x8000) last = Math.max(last, distance);
+      }
+      // add all RTPs but the first which is already included, lost ones are corrected if possible
+      for (int i = 1; i <= last; i++) {
+        rtp = getRtp(playCounter + i);
+        if (rtp == null) complete = false;
+        else list.add(rtp);
+      }
+      playCounter = playCounter + last; // set to snr of last packet
+    }
+    // a lost last fragment is missing in the time stamp list, but may be restored by FEC
+    while (list.get(list.size() - 1).getmarker() == 0 && isRestorable(playCounter + 1)) {
+      rtp = getRtp(playCounter + 1);
+      if (rtp.gettimestamp() != ts) break; // first packet of the next frame
+      list.add(rtp);
+      playCounter++;
+    }
+    // lost fragments at the end of the frame (no marker)
+    lastMarker = list.get(list.size() - 1).getmarker() == 1;
+    if (!complete || !lastMarker) nrFramesLost++;
+
+    if (lastTs != 0) frameDuration = ts - lastTs;
+    lastTs = ts;
+    // retained first: the first packets of a long frame may already be behind the FEC window
+    for (RTPpacket packet : list) packet.retain();
+    clearStack(playCounter); // packets behind the FEC window are no longer needed
     // System.out.println("-> Get list of " + list.size() + " RTPs with TS: " + (0xFFFFFFFFL & ts));
     return list;
   }
 
+  /**
+   * @param snr sequence number
+   * @return True, if the packet is lost but can be restored by FEC
+   */
+  private boolean isRestorable(int snr) {
+    snr = snr % 0x10000;
+    return useFec && !rtpStack.containsKey(snr) && checkCorrection(snr);
+  }
+
   /**
    * Checks if the RTP packet is reparable
    *
@@ -335,13 +431,59 @@ public class FecHandler {
   }
 
   /**
-   * It is necessary to clear all data structures
+   * It is necessary to clear all data structures. Packets more than a FEC group behind the played
+   * packet are removed and released, later packets may still be needed for a correction.
    *
    * @param nr Media Sequence Nr.
    */
   private void clearStack(int nr) {
-    //TASK complete this method!
+    rtpStack.values().removeIf(
+        rtp -> {
+          if (!isOutdated(rtp.getsequencenumber(), nr)) return false;
+          int snr = rtp.getsequencenumber();
+          fecNr.remove(snr);
+          fecList.remove(snr);
+          tsList.remove(rtp.gettimestamp());
+          rtp.release();
+          return true;
+        });
+    fecStack.values().removeIf(
+        fec -> {
+          if (!isOutdated(fec.snBase + maxGroupSize, nr)) return false;
+          fec.release();
+          return true;
+        });
+  }
+
+  /**
+   * @param snr sequence number
+   * @param nr sequence number of the played packet
+   * @return True, if snr is more than the maximum FEC group size behind nr, regarding the overflow
+   */
+  private static boolean isOutdated(int snr, int nr) {
+    int distance = (nr - snr) & 0xFFFF;
+    return distance > maxGroupSize && distance < 0x8000;
+  }
+
+  /**
+   * @param snr sequence number
+   * @param nr other sequence number
+   * @return True, if snr is before nr, regarding the overflow
+   */
+  private static boolean isBefore(int snr, int nr) {
+    int distance = (nr - snr) & 0xFFFF;
+    return distance != 0 && distance < 0x8000;
+  }
 
+  /** Releases all stored packets, e.g. at the end of the session */
+  public void clear() {
+    rtpStack.values().forEach(RTPpacket::release);
+    fecStack.values().forEach(RTPpacket::release);
+    rtpStack.clear();
+    fecStack.clear();
+    fecNr.clear();
+    fecList.clear();
+    tsList.clear();
   }
 
   // *************** Receiver Statistics ***********************************************************
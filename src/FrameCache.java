@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide cache of packetized frames (RFC 2435 payloads), shared by all sessions. Entries are
+ * keyed by video file and frame number and stored off-heap in direct buffers. When the byte
+ * budget is exceeded, entries are evicted with the CLOCK (second chance) policy.
+ *
+ * <p>With {@code -Dframecache.budget=<bytes>} the budget of the cache shared by the sessions of
+ * the server is set, {@link #DEFAULT_BUDGET} if not given.
+ */
+public class FrameCache {
+  static final long DEFAULT_BUDGET = 256L * 1024 * 1024; // bytes
+  static final long BUDGET = Long.getLong("framecache.budget", DEFAULT_BUDGET);
+
+  private final long budget;
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+  // CLOCK ring, guarded by this
+  private final List<Entry> clock = new ArrayList<>();
+  private int hand;
+  private long usedBytes;
+
+  // *** Statistics ****************************
+  private final LongAdder nrHits = new LongAdder();
+  private final LongAdder nrMisses = new LongAdder();
+  private long nrEvictions; // guarded by this
+
+  /** @param budget maximum size of all cached payloads in bytes */
+  public FrameCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Looks up a packetized frame
+   *
+   * @param file video file
+   * @param frameNb number of the frame in the file
+   * @return read-only payload or null, if the frame is not cached
+   */
+  public ByteBuffer get(String file, int frameNb) {
+    Entry entry = entries.get(new Key(file, frameNb));
+    if (entry == null) {
+      nrMisses.increment();
+      return null;
+    }
+    nrHits.increment();
+    entry.referenced = true;
+    return entry.data.duplicate();
+  }
+
+  /**
+   * Stores a packetized frame, evicting other frames if necessary
+   *
+   * @param file video file
+   * @param frameNb number of the frame in the file
+   * @param payload RFC 2435 payload
+   * @return read-only payload, backed by the cache if the frame fits into the budget
+   */
+  public ByteBuffer put(String file, int frameNb, byte[] payload) {
+    if (payload.length > budget) {
+      return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+    Key key = new Key(file, frameNb);
+    synchronized (this) {
+      Entry existing = entries.get(key);
+      if (existing != null) {
+        return existing.data.duplicate(); // another session was faster
+      }
+      while (usedBytes + payload.length > budget) {
+        evict();
+      }
+      ByteBuffer data = ByteBuffer.allocateDirect(payload.length);
+      data.put(payload).flip();
+      Entry entry = new Entry(key, data.asReadOnlyBuffer());
+      entries.put(key, entry);
+      clock.add(entry);
+      usedBytes += payload.length;
+      return entry.data.duplicate();
+    }
+  }
+
+  /** Advances the clock hand to the next entry without second chance and removes it */
+  private void evict() {
+    while (true) {
+      if (hand >= clock.size()) hand = 0;
+      Entry entry = clock.get(hand);
+      if (entry.referenced) {
+        entry.referenced = false; // second chance
+        hand++;
+      } else {
+        // replace by the last entry, the ring order does not matter for CLOCK
+        Entry last = clock.remove(clock.size() - 1);
+        if (last != entry) clock.set(hand, last);
+        entries.remove(entry.key);
+        usedBytes -= entry.data.capacity();
+        nrEvictions++;
+        return;
+      }
+    }
+  }
+
+  // *************** Statistics ******************************************************************
+
+  /** @return Number of lookups which found the frame */
+  public long getNrHits() {
+    return nrHits.sum();
+  }
+
+  /** @return Number of lookups without cached frame */
+  public long getNrMisses() {
+    return nrMisses.sum();
+  }
+
+  /** @return Number of evicted frames */
+  public synchronized long getNrEvictions() {
+    return nrEvictions;
+  }
+
+  /** @return Size of all cached payloads in bytes */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /** @return Number of cached frames */
+  public int getSize() {
+    return entries.size();
+  }
+
+  private static final class Key {
+    final String file;
+    final int frameNb;
+
+    Key(String file, int frameNb) {
+      this.file = file;
+      this.frameNb = frameNb;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return frameNb == other.frameNb && file.equals(other.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * file.hashCode() + frameNb;
+    }
+  }
+
+  private static final class Entry {
+    final Key key;
+    final ByteBuffer data;
+    volatile boolean referenced;
+
+    Entry(Key key, ByteBuffer data) {
+      this.key = key;
+      this.data = data;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decode stage of the client. JPEG frames are decoded on worker threads ahead of the playout
+ * clock, each worker uses a reader of a pool of ImageIO readers. The frames are decoded into
+ * recycled BufferedImages, so the event thread only swaps finished images. The JPEG images are
+ * assembled into recycled buffers as well, a buffer is reused after the decode of its frame.
+ *
+ * <p>Frames are submitted and polled in playout order on the event thread. An image polled for
+ * display belongs to the caller until it is handed back with {@link #release(BufferedImage)}.
+ */
+public class FrameDecoder {
+  static final int DEFAULT_DEPTH = 4; // number of frames decoded ahead of playout
+
+  private final ExecutorService workers;
+  private final BlockingQueue<ImageReader> readers;
+  private final BlockingQueue<BufferedImage> images; // recycled images for the next decodes
+  private final BlockingQueue<byte[]> buffers; // recycled JPEG buffers, released by the workers
+  private final Deque<Future<BufferedImage>> pending = new ArrayDeque<>(); // in playout order
+  private final int depth;
+
+  // *** Statistics ****************************
+  private int nrDecoded; // frames decoded successfully
+  private int nrFailed; // frames which could not be decoded
+  private int nrLate; // playout found the next frame still in decoding
+
+  /**
+   * @param threads number of worker threads and readers
+   * @param depth maximum number of frames in decoding or ready for display
+   */
+  public FrameDecoder(int threads, int depth) {
+    this.depth = depth;
+    readers = new ArrayBlockingQueue<>(threads);
+    for (int i = 0; i < threads; i++) {
+      readers.add(ImageIO.getImageReadersByFormatName("jpeg").next());
+    }
+    images = new ArrayBlockingQueue<>(depth + 1);
+    buffers = new ArrayBlockingQueue<>(depth);
+    workers =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "FrameDecoder");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** @return Decoder with one thread per spare core and the default depth */
+  public static FrameDecoder create() {
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    return new FrameDecoder(threads, DEFAULT_DEPTH);
+  }
+
+  /** @return True, if no further frame should be submitted */
+  public boolean isFull() {
+    return pending.size() >= depth;
+  }
+
+  /** @return True, if no frame is in decoding or ready for display */
+  public boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * Starts decoding the next frame in playout order. The JPEG image is written into a recycled
+   * buffer, the frame may be modified afterwards.
+   *
+   * @param frame combined frame or null for a lost frame, which keeps the last image displayed
+   */
+  public void submit(JpegFrame frame) {
+    if (frame == null) {
+      pending.add(CompletableFuture.completedFuture(null));
+      return;
+    }
+    byte[] buffer = buffers.poll();
+    if (buffer == null || buffer.length < frame.getJpegLength()) {
+      buffer = new byte[frame.getJpegLength()]; // a smaller buffer is left to the garbage collector
+    }
+    byte[] jpeg = buffer;
+    int length = frame.writeJpeg(jpeg, 0);
+    pending.add(workers.submit(() -> decode(jpeg, length)));
+  }
+
+  /**
+   * Delivers the next frame in playout order, if its decoding is finished
+   *
+   * @return image, or null if the frame was lost, could not be decoded or is not ready yet
+   */
+  public BufferedImage poll() {
+    Future<BufferedImage> next = pending.peek();
+    if (next == null) return null;
+    if (!next.isDone()) {
+      nrLate++; // shown at the next tick
+      return null;
+    }
+    pending.remove();
+    try {
+      BufferedImage image = next.get();
+      if (image != null) nrDecoded++;
+      return image;
+    } catch (ExecutionException e) {
+      nrFailed++;
+      System.out.println("Frame could not be decoded: " + e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  /**
+   * Hands back an image which is no longer displayed, it is overwritten by a following decode
+   *
+   * @param image image delivered by {@link #poll()}
+   */
+  public void release(BufferedImage image) {
+    if (image != null) images.offer(image); // surplus images are left to the garbage collector
+  }
+
+  /** Discards all frames in decoding, e.g. after a seek or at the end of the session */
+  public void clear() {
+    for (Future<BufferedImage> frame : pending) {
+      frame.cancel(false);
+    }
+    pending.clear();
+  }
+
+  /** Stops the worker threads */
+  public void shutdown() {
+    clear();
+    workers.shutdownNow();
+  }
+
+  /** Decodes a frame on a worker thread, preferably into a recycled image */
+  private BufferedImage decode(byte[] jpeg, int length) throws IOException, InterruptedException {
+    ImageReader reader = readers.take(); // one reader per worker, never blocks
+    try (ImageInputStream input =
+        new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg, 0, length))) {
+      reader.setInput(input, true, true);
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setDestination(recycledImage(reader));
+      return reader.read(0, param);
+    } finally {
+      reader.setInput(null);
+      readers.put(reader);
+      buffers.offer(jpeg); // surplus buffers are left to the garbage collector
+    }
+  }
+
+  /**
+   * @return Recycled image with size and type of the current frame, or null if the reader has to
+   *     allocate a new one
+   */
+  private BufferedImage recycledImage(ImageReader reader) throws IOException {
+    BufferedImage image = images.poll();
+    if (image == null) return null;
+    ImageTypeSpecifier type = reader.getImageTypes(0).next();
+    if (image.getWidth() != reader.getWidth(0)
+        || image.getHeight() != reader.getHeight(0)
+        || image.getType() != type.getBufferedImageType()) {
+      return null; // resolution or color space changed, the old image is dropped
+    }
+    return image;
+  }
+
+  // *************** Statistics ******************************************************************
+
+  /** @return Number of frames in decoding or ready for display */
+  public int getDepth() {
+    return pending.size();
+  }
+
+  /** @return Number of successfully decoded frames */
+  public int getNrDecoded() {
+    return nrDecoded;
+  }
+
+  /** @return Number of frames which could not be decoded */
+  public int getNrFailed() {
+    return nrFailed;
+  }
+
+  /** @return Number of playout ticks without a finished frame */
+  public int getNrLate() {
+    return nrLate;
+  }
+}
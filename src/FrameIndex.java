@@ -0,0 +1,313 @@
+import static java.util.logging.Level.WARNING;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Index der JPEG-Bilder einer MJPEG-Datei. Für jedes Bild werden Offset (Position des SOI-Markers)
+ * und Länge (inklusive EOI-Marker) in primitiven Arrays gehalten, zusätzlich die Bildgröße aus dem
+ * SOF0 und das Restart-Intervall des ersten Bildes.
+ *
+ * <p>Der Index wird als Sidecar-Datei ({@code <video>.idx}) neben dem Video gespeichert und beim
+ * nächsten Öffnen geladen, solange Größe und Änderungszeit des Videos übereinstimmen.
+ *
+ * <pre>
+ * Sidecar (Big Endian):
+ *   int  MAGIC           long fileSize        long lastModified
+ *   int  width           int  height          int  restartInterval
+ *   int  frameCount      long offsets[frameCount]   int lengths[frameCount]
+ * </pre>
+ */
+public class FrameIndex {
+
+  public static final String SIDECAR_SUFFIX = ".idx";
+
+  private static final int MAGIC = 0x4D4A4931; // "MJI1"
+  private static final int SIDECAR_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 4;
+  // Größe eines Fensters beim Durchsuchen der Videodatei
+  private static final int SCAN_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private long[] offsets;
+  private int[] lengths;
+  private int frameCount;
+  private int width;
+  private int height;
+  private int restartInterval;
+
+  /** Erstellt einen leeren Index. */
+  public FrameIndex() {
+    this(256);
+  }
+
+  private FrameIndex(final int capacity) {
+    this.offsets = new long[Math.max(capacity, 1)];
+    this.lengths = new int[Math.max(capacity, 1)];
+  }
+
+  /**
+   * Liefert den Index zu einer Videodatei. Ist eine gültige Sidecar-Datei vorhanden, wird diese
+   * geladen, sonst wird das Video durchsucht und die Sidecar-Datei neu geschrieben.
+   *
+   * @param videoFilePath Pfad für das Video
+   * @return Index des Videos
+   * @throws IOException falls das Video nicht gelesen werden kann
+   */
+  public static FrameIndex forFile(final String videoFilePath) throws IOException {
+    final Path video = Paths.get(videoFilePath);
+    final Path sidecar = Paths.get(videoFilePath + SIDECAR_SUFFIX);
+    final long fileSize = Files.size(video);
+    final long lastModified = Files.getLastModifiedTime(video).toMillis();
+
+    if (Files.isRegularFile(sidecar)) {
+      try {
+        final FrameIndex index = load(sidecar, fileSize, lastModified);
+        if (index != null) {
+          return index;
+        }
+      } catch (IOException e) {
+        Logger.getGlobal().log(WARNING, "Index " + sidecar + " konnte nicht gelesen werden.");
+      }
+    }
+
+    final FrameIndex index;
+    try (FileChannel channel = FileChannel.open(video, StandardOpenOption.READ)) {
+      index = build(channel);
+    }
+    try {
+      index.save(sidecar, fileSize, lastModified);
+    } catch (IOException e) {
+      // Ohne Sidecar funktioniert das Video trotzdem, es wird nur beim nächsten Mal erneut gesucht.
+      Logger.getGlobal().log(WARNING, "Index " + sidecar + " konnte nicht geschrieben werden.");
+    }
+    return index;
+  }
+
+  /**
+   * Durchsucht eine Videodatei fensterweise nach SOI- und EOI-Markern. Verschachtelte SOI (z.B.
+   * eingebettete Thumbnails) werden wie im {@link VideoReader} mitgezählt.
+   *
+   * @param channel File Channel des Videos
+   * @return erstellter Index
+   * @throws IOException IOException
+   */
+  public static FrameIndex build(final FileChannel channel) throws IOException {
+    final FrameIndex index = new FrameIndex();
+    final long size = channel.size();
+    // Zähler für enthaltene SOI-Marker, für die noch kein EOI gelesen wurde.
+    int soiCount = 0;
+    // Gibt an, ob ein Markeranfang (0xFF) gelesen wurde.
+    boolean markerStart = false;
+    // Position des SOI, mit dem das aktuelle Bild beginnt.
+    long frameStart = 0;
+
+    for (long base = 0; base < size; base += SCAN_WINDOW_SIZE) {
+      final int windowSize = (int) Math.min(SCAN_WINDOW_SIZE, size - base);
+      final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, windowSize);
+
+      for (int i = 0; i < windowSize; i++) {
+        final byte currentByte = window.get(i);
+
+        if (currentByte == JpegFrame.MARKER_TAG_START) {
+          markerStart = true;
+          continue;
+        }
+        if (markerStart) {
+          if (currentByte == JpegFrame.SOI_MARKER[1]) {
+            if (soiCount == 0) {
+              frameStart = base + i - 1;
+            }
+            soiCount++;
+          } else if (currentByte == JpegFrame.EOI_MARKER[1] && soiCount > 0) {
+            soiCount--;
+            if (soiCount == 0) {
+              index.add(frameStart, (int) (base + i + 1 - frameStart));
+            }
+          }
+          markerStart = false;
+        }
+      }
+    }
+
+    if (index.frameCount > 0) {
+      final int length = index.lengths[0];
+      final MappedByteBuffer first =
+          channel.map(FileChannel.MapMode.READ_ONLY, index.offsets[0], length);
+      index.readHeaderInfo(first);
+    }
+    return index;
+  }
+
+  /**
+   * Liest Bildgröße (SOF0) und Restart-Intervall (DRI) aus den Header-Segmenten eines Bildes.
+   *
+   * @param jpeg JPEG-Bild inklusive SOI
+   */
+  private void readHeaderInfo(final ByteBuffer jpeg) {
+    int idx = 2; // SOI überspringen
+    while (idx + 4 <= jpeg.limit() && jpeg.get(idx) == JpegFrame.MARKER_TAG_START) {
+      final byte marker = jpeg.get(idx + 1);
+      final int segmentLength = jpeg.getShort(idx + 2) & 0xFFFF;
+      if (marker == JpegFrame.SOF0_MARKER[1] && idx + 9 <= jpeg.limit()) {
+        height = jpeg.getShort(idx + 5) & 0xFFFF;
+        width = jpeg.getShort(idx + 7) & 0xFFFF;
+      } else if (marker == JpegFrame.DRI_MARKER[1] && idx + 6 <= jpeg.limit()) {
+        restartInterval = jpeg.getShort(idx + 4) & 0xFFFF;
+      } else if (marker == JpegFrame.SOS_MARKER[1]) {
+        break;
+      }
+      idx += 2 + segmentLength;
+    }
+  }
+
+  /**
+   * Lädt einen Index aus einer Sidecar-Datei.
+   *
+   * @param sidecar Pfad der Sidecar-Datei
+   * @param fileSize erwartete Größe des Videos
+   * @param lastModified erwartete Änderungszeit des Videos
+   * @return geladener Index oder NULL, falls die Sidecar-Datei nicht zum Video passt
+   * @throws IOException IOException
+   */
+  private static FrameIndex load(final Path sidecar, final long fileSize, final long lastModified)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+      if (channel.size() < SIDECAR_HEADER_SIZE) {
+        return null;
+      }
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getLong() != fileSize || buffer.getLong() != lastModified) {
+        return null;
+      }
+      final int width = buffer.getInt();
+      final int height = buffer.getInt();
+      final int restartInterval = buffer.getInt();
+      final int frameCount = buffer.getInt();
+      if (frameCount < 0 || buffer.remaining() != frameCount * 12L) {
+        return null;
+      }
+
+      final FrameIndex index = new FrameIndex(frameCount);
+      index.width = width;
+      index.height = height;
+      index.restartInterval = restartInterval;
+      index.frameCount = frameCount;
+      buffer.asLongBuffer().get(index.offsets, 0, frameCount);
+      buffer.position(buffer.position() + frameCount * 8);
+      buffer.asIntBuffer().get(index.lengths, 0, frameCount);
+      return index;
+    }
+  }
+
+  /**
+   * Schreibt den Index als Sidecar-Datei.
+   *
+   * @param sidecar Pfad der Sidecar-Datei
+   * @param fileSize Größe des Videos
+   * @param lastModified Änderungszeit des Videos
+   * @throws IOException IOException
+   */
+  private void save(final Path sidecar, final long fileSize, final long lastModified)
+      throws IOException {
+    // Zuerst in eine eigene temporäre Datei im selben Verzeichnis schreiben, damit parallele
+    // Sessions keinen halben Index lesen und gleichzeitige Indizierungen sich nicht überschreiben.
+    final Path dir = sidecar.toAbsolutePath().getParent();
+    final Path tmp = Files.createTempFile(dir, sidecar.getFileName() + ".", ".tmp");
+    try {
+      write(tmp, fileSize, lastModified);
+      Files.move(
+          tmp, sidecar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp); // nur nach einem Fehler noch vorhanden
+    }
+  }
+
+  /** Schreibt Kopf und Tabellen des Index in die Datei. */
+  private void write(final Path tmp, final long fileSize, final long lastModified)
+      throws IOException {
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeLong(fileSize);
+      out.writeLong(lastModified);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeInt(restartInterval);
+      out.writeInt(frameCount);
+      for (int i = 0; i < frameCount; i++) {
+        out.writeLong(offsets[i]);
+      }
+      for (int i = 0; i < frameCount; i++) {
+        out.writeInt(lengths[i]);
+      }
+    }
+  }
+
+  /**
+   * Fügt ein Bild am Ende des Index hinzu.
+   *
+   * @param offset Position des SOI-Markers
+   * @param length Länge des Bildes inklusive SOI und EOI
+   */
+  public void add(final long offset, final int length) {
+    if (frameCount == offsets.length) {
+      offsets = Arrays.copyOf(offsets, frameCount * 2);
+      lengths = Arrays.copyOf(lengths, frameCount * 2);
+    }
+    offsets[frameCount] = offset;
+    lengths[frameCount] = length;
+    frameCount++;
+  }
+
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  public long getOffset(final int frameNb) {
+    checkFrameNb(frameNb);
+    return offsets[frameNb];
+  }
+
+  public int getLength(final int frameNb) {
+    checkFrameNb(frameNb);
+    return lengths[frameNb];
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+  /**
+   * Liefert die Dauer des Videos.
+   *
+   * @param framePeriod Abstand zweier Bilder in ms
+   * @return Dauer in ms
+   */
+  public long getDuration(final int framePeriod) {
+    return (long) frameCount * framePeriod;
+  }
+
+  private void checkFrameNb(final int frameNb) {
+    if (frameNb < 0 || frameNb >= frameCount) {
+      throw new IndexOutOfBoundsException("Bild " + frameNb + " nicht im Index (" + frameCount + ").");
+    }
+  }
+}
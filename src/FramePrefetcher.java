@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read-ahead stage between the FrameSource and the send timer. A background thread reads, parses
+ * and packetizes the frames and keeps a bounded queue of ready RFC 2435 payloads, so disk stalls
+ * do not show up as sender jitter. Payloads already prepared by another session are taken from
+ * the shared FrameCache. With an index the cache is looked up first and the source is only read
+ * on a miss, positioned through the index; a source without index is read frame by frame.
+ *
+ * <p>For a {@link Rendition} other than the original, the frames are read in batches of the queue
+ * depth and re-encoded in parallel on the fork-join pool of the rendition.
+ */
+public class FramePrefetcher implements Runnable {
+  static final int DEFAULT_DEPTH = 8; // number of ready frames ahead of playout
+
+  private final FrameSource source;
+  private final String file; // key of the frames in the cache
+  private final FrameCache cache;
+  private final BlockingQueue<ByteBuffer> ready;
+  private final Thread thread;
+  private final int depth;
+  private volatile boolean endOfStream;
+  private Rendition rendition = Rendition.FULL;
+  // range of frames read through the index, step 0 reads a source without index sequentially
+  private int nextFrame;
+  private int endFrame;
+  private int step;
+
+  // *** Statistics ****************************
+  private int nrTaken; // frames handed to the sender
+  private int nrUnderruns; // sender found no ready frame
+  private int minDepth = Integer.MAX_VALUE; // lowest queue depth seen by the sender
+
+  /**
+   * @param source source of the JPEG frames
+   * @param file name of the video file, used as cache key
+   * @param cache shared cache of packetized frames, may be null
+   * @param depth maximum number of prepared frames
+   */
+  public FramePrefetcher(FrameSource source, String file, FrameCache cache, int depth) {
+    this.source = source;
+    this.file = file;
+    this.cache = cache;
+    this.ready = new ArrayBlockingQueue<>(depth);
+    this.depth = depth;
+    this.thread = new Thread(this, "FramePrefetcher");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Restricts reading to a range of frames, the source is positioned through its index. Frames in
+   * between are skipped without reading them, which allows fast-forward and rewind. Must be called
+   * before {@link #start()}.
+   *
+   * @param startFrame number of the first frame
+   * @param endFrame number of the frame after the last frame in playing direction
+   * @param step distance of the frames to read, negative for reverse playback
+   */
+  public void setRange(int startFrame, int endFrame, int step) {
+    this.nextFrame = startFrame;
+    this.endFrame = endFrame;
+    this.step = step;
+  }
+
+  /**
+   * Selects the rendition to prepare, must be called before {@link #start()}.
+   *
+   * @param rendition rendition of the session
+   */
+  public void setRendition(Rendition rendition) {
+    this.rendition = rendition;
+  }
+
+  /** Starts reading ahead */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Stops the background thread, already prepared frames are discarded. Waits for the thread, so
+   * the source may be repositioned or closed afterwards.
+   */
+  public void stop() {
+    thread.interrupt();
+    ready.clear();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      FrameIndex index = source.getFrameIndex();
+      if (step == 0 && index != null) {
+        setRange(source.getFrameNumber() + 1, index.getFrameCount(), 1); // frames may be skipped
+      }
+      if (rendition.isOriginal()) {
+        int frameNb;
+        while (!Thread.currentThread().isInterrupted() && (frameNb = nextFrameNb()) >= 0) {
+          ByteBuffer payload = step != 0 ? cached(file, frameNb) : null;
+          if (payload == null) {
+            ByteBuffer frame = readFrame(frameNb);
+            if (frame == null) break;
+            if (step == 0) payload = cached(file, frameNb); // the source cannot skip the frame
+            if (payload == null) payload = packetize(frame, frameNb);
+          }
+          ready.put(payload); // blocks while the queue is full
+        }
+      } else {
+        boolean more = true;
+        while (!Thread.currentThread().isInterrupted() && more) {
+          more = transcodeBatch();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      System.out.println("Prefetcher stopped: " + e);
+    }
+    endOfStream = true;
+  }
+
+  /** @return Number of the next frame in playing direction, or -1 after the range */
+  private int nextFrameNb() {
+    if (step == 0) return source.getFrameNumber() + 1; // the end shows up when reading
+    if (step > 0 ? nextFrame >= endFrame : nextFrame <= endFrame) return -1;
+    int frameNb = nextFrame;
+    nextFrame += step;
+    return frameNb;
+  }
+
+  /** Reads a frame, the source is positioned through the index if the frame is not the next */
+  private ByteBuffer readFrame(int frameNb) throws IOException {
+    if (source.getFrameNumber() + 1 != frameNb) source.seek(frameNb);
+    return source.readNextFrame();
+  }
+
+  /** @return Payload of the frame from the cache, or null */
+  private ByteBuffer cached(String key, int frameNb) {
+    return cache != null ? cache.get(key, frameNb) : null;
+  }
+
+  /**
+   * Reads up to one queue depth of frames and transcodes those not cached in parallel
+   *
+   * @return false at the end of the source
+   */
+  private boolean transcodeBatch() throws IOException, InterruptedException {
+    String key = rendition.getCacheKey(file);
+    ByteBuffer[] payloads = new ByteBuffer[depth];
+    byte[][] jpegs = new byte[depth][];
+    int[] frameNbs = new int[depth];
+    int count = 0;
+    int missing = 0;
+    int frameNb;
+    while (count < depth && (frameNb = nextFrameNb()) >= 0) {
+      ByteBuffer payload = step != 0 ? cached(key, frameNb) : null;
+      if (payload == null) {
+        ByteBuffer frame = readFrame(frameNb);
+        if (frame == null) break;
+        if (step == 0) payload = cached(key, frameNb); // the source cannot skip the frame
+        if (payload == null) {
+          // the buffer of the source is only valid until the next read
+          jpegs[missing] = new byte[frame.remaining()];
+          frame.get(jpegs[missing++]);
+        }
+      }
+      frameNbs[count] = frameNb;
+      payloads[count++] = payload;
+    }
+    byte[][] transcoded =
+        missing > 0 ? rendition.transcodeAll(Arrays.copyOf(jpegs, missing)) : jpegs;
+    for (int i = 0, j = 0; i < count; i++) {
+      if (payloads[i] == null) {
+        byte[] rfc2435 = transcoded[j++];
+        payloads[i] = cache != null
+            ? cache.put(key, frameNbs[i], rfc2435)
+            : ByteBuffer.wrap(rfc2435).asReadOnlyBuffer();
+      }
+      ready.put(payloads[i]); // blocks while the queue is full
+    }
+    return count == depth;
+  }
+
+  /**
+   * Builds the RTP-JPEG payload (RFC 2435) of a frame not in the cache and adds it to the cache
+   *
+   * @param frame JPEG frame including SOI and EOI
+   * @param frameNb number of the frame in the file
+   * @return read-only payload
+   */
+  private ByteBuffer packetize(ByteBuffer frame, int frameNb) {
+    byte[] rfc2435 = JpegFrame.getFromJpegBuffer(frame).getAsRfc2435Bytes(); // parsed in place
+    return cache != null
+        ? cache.put(file, frameNb, rfc2435)
+        : ByteBuffer.wrap(rfc2435).asReadOnlyBuffer();
+  }
+
+  /**
+   * Delivers the next prepared RTP-JPEG payload without blocking
+   *
+   * @return payload or null, if no frame is ready (underrun) or the stream is finished
+   */
+  public ByteBuffer poll() {
+    int depth = ready.size();
+    if (depth < minDepth) minDepth = depth;
+    ByteBuffer frame = ready.poll();
+    if (frame != null) {
+      nrTaken++;
+    } else if (!endOfStream) {
+      nrUnderruns++;
+    }
+    return frame;
+  }
+
+  /** @return True, if the source is exhausted and all frames are delivered */
+  public boolean isFinished() {
+    return endOfStream && ready.isEmpty();
+  }
+
+  // *************** Statistics ******************************************************************
+
+  /** @return Number of currently prepared frames */
+  public int getDepth() {
+    return ready.size();
+  }
+
+  /** @return Lowest number of prepared frames seen at a poll */
+  public int getMinDepth() {
+    return minDepth == Integer.MAX_VALUE ? 0 : minDepth;
+  }
+
+  /** @return Number of polls without a ready frame */
+  public int getNrUnderruns() {
+    return nrUnderruns;
+  }
+
+  /** @return Number of frames delivered to the sender */
+  public int getNrTaken() {
+    return nrTaken;
+  }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Gemeinsame Schnittstelle aller Quellen, aus denen der Server JPEG-Bilder liest.
+ *
+ * <p>Ein Bild wird stets inklusive SOI- und EOI-Marker geliefert.
+ */
+public interface FrameSource {
+
+  /**
+   * Liefert das nächste JPEG-Bild als Buffer. Je nach Implementierung ist der Buffer nur bis zum
+   * nächsten Aufruf gültig und darf nicht verändert werden.
+   *
+   * @return JPEG-Bild oder NULL, falls kein weiteres Bild gelesen werden konnte
+   * @throws IOException IOException
+   */
+  ByteBuffer readNextFrame() throws IOException;
+
+  /**
+   * Liest das nächste JPEG-Bild als eigenständiges Byte Array ein.
+   *
+   * @return JPEG-Bild oder NULL, falls kein weiteres Bild gelesen werden konnte
+   * @throws IOException IOException
+   */
+  default byte[] readNextImage() throws IOException {
+    final ByteBuffer frame = readNextFrame();
+    if (frame == null) {
+      return null;
+    }
+    final byte[] result = new byte[frame.remaining()];
+    frame.get(result);
+    return result;
+  }
+
+  /** @return Nummer des zuletzt gelieferten Bildes, beginnend bei 0, vor dem ersten Bild -1 */
+  int getFrameNumber();
+
+  /**
+   * Liefert den Index der Bilder, sofern die Quelle wahlfreien Zugriff erlaubt.
+   *
+   * @return Index der Bilder oder NULL, falls die Quelle nur sequentiell gelesen werden kann
+   * @throws IOException falls der Index nicht erstellt werden kann
+   */
+  default FrameIndex getFrameIndex() throws IOException {
+    return null;
+  }
+
+  /**
+   * Positioniert die Quelle über den Index, sodass {@link #readNextFrame()} als nächstes das
+   * angegebene Bild liefert. Die Datei wird dabei nicht erneut durchsucht.
+   *
+   * @param frameNb Nummer des Bildes, beginnend bei 0
+   * @throws IOException falls die Quelle nicht positioniert werden kann
+   */
+  default void seek(int frameNb) throws IOException {
+    throw new IOException("Quelle kann nur sequentiell gelesen werden.");
+  }
+
+  /** Schließt die Quelle und gibt die belegten Ressourcen frei. */
+  void close();
+}
@@ -0,0 +1,92 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the one-way latency and the pacing of the frames from the header extensions of the
+ * received packets. A frame is counted when its last packet (marker bit) arrives.
+ *
+ * <p>The latency compares the capture time of the sender with the local clock, it is only
+ * meaningful with synchronized clocks, e.g. on one host. The pacing jitter is independent of the
+ * clock offset: it is the deviation of the interarrival time of consecutive frames from their
+ * capture interval, smoothed as the interarrival jitter of RFC 3550.
+ */
+public class FrameTiming {
+  private static final double SMOOTHING = 1.0 / 16; // gain of RFC 3550, 6.4.1
+
+  private long lastArrival; // ms of the last counted frame
+  private long lastCapture; // capture time of the last counted frame in ms
+  private int lastFrameId = -1; // frame number of the last counted frame, -1 before the first
+
+  // *** Statistics ****************************
+  private long latency; // of the last frame in ms
+  private double avgLatency; // smoothed latency in ms
+  private long maxLatency;
+  private double jitter; // smoothed pacing jitter in ms
+  private int nrFrames; // frames with timing information
+  private int nrFramesSkipped; // gaps in the frame numbers, frames not complete at the receiver
+
+  /**
+   * Evaluates a received packet, packets without timing information are ignored
+   *
+   * @param rtp received media packet
+   * @param arrival time of arrival in ms since 1970
+   */
+  public void onPacket(RTPpacket rtp, long arrival) {
+    if (rtp.getmarker() == 0) return;
+    ByteBuffer captureTime = rtp.getHeaderExtension(RtpHeaderExtension.CAPTURE_TIME_ID);
+    ByteBuffer frameId = rtp.getHeaderExtension(RtpHeaderExtension.FRAME_ID_ID);
+    if (captureTime == null || frameId == null) return; // e.g. a packet restored by FEC
+
+    long capture = RtpHeaderExtension.toMillis(RtpHeaderExtension.toLong(captureTime));
+    int id = (int) RtpHeaderExtension.toLong(frameId);
+    latency = arrival - capture;
+    avgLatency = nrFrames == 0 ? latency : avgLatency + (latency - avgLatency) * SMOOTHING;
+    maxLatency = nrFrames == 0 ? latency : Math.max(maxLatency, latency);
+    nrFrames++;
+
+    if (lastFrameId >= 0) {
+      int gap = (id - lastFrameId) & 0xFFFF;
+      if (gap == 0 || gap > 0x8000) return; // duplicate or late frame, the order is kept
+      if (gap == 1) {
+        long deviation = (arrival - lastArrival) - (capture - lastCapture);
+        jitter += (Math.abs(deviation) - jitter) * SMOOTHING;
+      } else {
+        nrFramesSkipped += gap - 1;
+      }
+    }
+    lastArrival = arrival;
+    lastCapture = capture;
+    lastFrameId = id;
+  }
+
+  // *************** Statistics ******************************************************************
+
+  /** @return One-way latency of the last frame in ms */
+  public long getLatency() {
+    return latency;
+  }
+
+  /** @return Smoothed one-way latency in ms */
+  public double getAvgLatency() {
+    return avgLatency;
+  }
+
+  /** @return Highest one-way latency in ms */
+  public long getMaxLatency() {
+    return maxLatency;
+  }
+
+  /** @return Smoothed deviation of the frame interarrival time from the capture interval in ms */
+  public double getJitter() {
+    return jitter;
+  }
+
+  /** @return Number of frames with timing information */
+  public int getNrFrames() {
+    return nrFrames;
+  }
+
+  /** @return Number of frames whose last packet did not arrive */
+  public int getNrFramesSkipped() {
+    return nrFramesSkipped;
+  }
+}
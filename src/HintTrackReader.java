@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a hint file created by {@link HintTrackWriter}. The file is memory-mapped and delivers
+ * ready RFC 2435 payload fragments as read-only slices, so no JPEG parsing is necessary while
+ * streaming.
+ *
+ * <pre>
+ * Hint file (big endian):
+ *   Header         int MAGIC, int version, int framePeriod, int frameCount, int packetCount
+ *   Frame table    frameCount x (int firstPacket, int timestamp)
+ *   Packet table   packetCount x (long offset, int length, int flags)   flags: bit 0 = marker
+ *   Payload data   fragments, addressed by the packet table
+ * </pre>
+ */
+public class HintTrackReader {
+  static final String SUFFIX = ".hint";
+  static final int MAGIC = 0x4D4A4854; // "MJHT"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 20;
+  static final int FRAME_ENTRY_SIZE = 8;
+  static final int PACKET_ENTRY_SIZE = 16;
+  static final int FLAG_MARKER = 1;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int framePeriod;
+  private final int frameCount;
+  private final int packetCount;
+  private final int packetTable; // start of the packet table
+  private int position; // number of the next frame to send
+
+  /**
+   * Maps the hint file and checks its header
+   *
+   * @param hintFilePath path of the hint file
+   * @throws IOException if the file cannot be read or is no valid hint file
+   */
+  public HintTrackReader(String hintFilePath) throws IOException {
+    channel = FileChannel.open(Paths.get(hintFilePath), StandardOpenOption.READ);
+    try {
+      if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER_SIZE) {
+        throw new IOException("Unsupported size of hint file " + hintFilePath);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("No hint file: " + hintFilePath);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    framePeriod = buffer.getInt(8);
+    frameCount = buffer.getInt(12);
+    packetCount = buffer.getInt(16);
+    packetTable = HEADER_SIZE + frameCount * FRAME_ENTRY_SIZE;
+  }
+
+  /** @return Number of frames */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /** @return Frame period in ms the file was created with */
+  public int getFramePeriod() {
+    return framePeriod;
+  }
+
+  /**
+   * @param frameNb number of the frame
+   * @return RTP time stamp of the frame, relative to the start of the video
+   */
+  public int getTimestamp(int frameNb) {
+    return buffer.getInt(HEADER_SIZE + frameNb * FRAME_ENTRY_SIZE + 4);
+  }
+
+  /**
+   * @param frameNb number of the frame
+   * @return Number of RTP packets of the frame
+   */
+  public int getPacketCount(int frameNb) {
+    int next = frameNb + 1 < frameCount ? firstPacket(frameNb + 1) : packetCount;
+    return next - firstPacket(frameNb);
+  }
+
+  /**
+   * @param frameNb number of the frame
+   * @param i number of the packet within the frame
+   * @return RFC 2435 payload of the packet as read-only slice of the mapped file
+   */
+  public ByteBuffer getPacket(int frameNb, int i) {
+    int entry = packetEntry(frameNb, i);
+    int offset = (int) buffer.getLong(entry);
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(offset + buffer.getInt(entry + 8));
+    slice.position(offset);
+    return slice.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * @param frameNb number of the frame
+   * @param i number of the packet within the frame
+   * @return True, if the marker bit is set (last packet of the frame)
+   */
+  public boolean isMarker(int frameNb, int i) {
+    return (buffer.getInt(packetEntry(frameNb, i) + 12) & FLAG_MARKER) != 0;
+  }
+
+  /** @return Number of the next frame to send */
+  public int getPosition() {
+    return position;
+  }
+
+  /** @param position number of the next frame to send */
+  public void setPosition(int position) {
+    this.position = position;
+  }
+
+  /** Closes the file channel, the mapping is released by the garbage collector */
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.out.println("Hint file could not be closed: " + e);
+    }
+  }
+
+  private int firstPacket(int frameNb) {
+    if (frameNb < 0 || frameNb >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + frameNb + " not in hint file");
+    }
+    return buffer.getInt(HEADER_SIZE + frameNb * FRAME_ENTRY_SIZE);
+  }
+
+  private int packetEntry(int frameNb, int i) {
+    return packetTable + (firstPacket(frameNb) + i) * PACKET_ENTRY_SIZE;
+  }
+}
@@ -0,0 +1,146 @@
+/* ------------------
+HintTrackWriter
+usage: java HintTrackWriter [MJPEG file] [hint file] [frame period in ms] [max. payload size]
+---------------------- */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Offline converter from MJPEG to a hint file. Every frame is parsed once and stored as ready RFC
+ * 2435 payload fragments together with marker bit, time stamp and a frame index, see {@link
+ * HintTrackReader} for the file layout.
+ */
+public class HintTrackWriter {
+  static final int DEFAULT_FRAME_PERIOD = 40; // ms, same as the server
+
+  // frame table
+  private int[] firstPacket = new int[256];
+  private int[] timestamps = new int[256];
+  private int frameCount;
+  // packet table, offsets are relative to the payload data
+  private long[] packetOffsets = new long[1024];
+  private int[] packetLengths = new int[1024];
+  private int[] packetFlags = new int[1024];
+  private int packetCount;
+
+  public static void main(String[] argv) throws Exception {
+    if (argv.length < 2) {
+      System.out.println("usage: java HintTrackWriter mjpeg-file hint-file [frame-period] [payload-size]");
+      return;
+    }
+    int framePeriod = argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_FRAME_PERIOD;
+    int maxPayload = argv.length > 3 ? Integer.parseInt(argv[3]) : RTPpacket.MAX_PAYLOAD_SIZE;
+
+    long start = System.currentTimeMillis();
+    HintTrackWriter writer = new HintTrackWriter();
+    writer.convert(argv[0], argv[1], framePeriod, maxPayload);
+    System.out.println("Converted " + writer.frameCount + " frames into " + writer.packetCount
+        + " packets in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Converts a MJPEG file into a hint file
+   *
+   * @param mjpegFile source video
+   * @param hintFile destination
+   * @param framePeriod frame period in ms, used for the time stamps
+   * @param maxPayload maximum size of a RTP payload
+   * @throws IOException if a file cannot be read or written
+   */
+  public void convert(String mjpegFile, String hintFile, int framePeriod, int maxPayload)
+      throws IOException {
+    // the payloads are collected in a temporary file, the tables are only known at the end
+    File dir = new File(hintFile).getAbsoluteFile().getParentFile();
+    File data = File.createTempFile("hint", ".data", dir);
+    try {
+      long dataSize = 0;
+      VideoReader reader = new VideoReader(mjpegFile);
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data)))) {
+        ByteBuffer jpeg;
+        while ((jpeg = reader.readNextFrame()) != null) {
+          JpegFrame jpegFrame = JpegFrame.getFromJpegBuffer(jpeg);
+          List<byte[]> fragments = jpegFrame.getAsRfc2435Fragments(maxPayload);
+          addFrame(frameCount * framePeriod);
+          for (int i = 0; i < fragments.size(); i++) {
+            byte[] fragment = fragments.get(i);
+            addPacket(dataSize, fragment.length, i == fragments.size() - 1);
+            out.write(fragment);
+            dataSize += fragment.length;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      writeHintFile(hintFile, data, framePeriod);
+    } finally {
+      data.delete();
+    }
+  }
+
+  private void addFrame(int timestamp) {
+    if (frameCount == firstPacket.length) {
+      firstPacket = Arrays.copyOf(firstPacket, frameCount * 2);
+      timestamps = Arrays.copyOf(timestamps, frameCount * 2);
+    }
+    firstPacket[frameCount] = packetCount;
+    timestamps[frameCount] = timestamp;
+    frameCount++;
+  }
+
+  private void addPacket(long offset, int length, boolean marker) {
+    if (packetCount == packetOffsets.length) {
+      packetOffsets = Arrays.copyOf(packetOffsets, packetCount * 2);
+      packetLengths = Arrays.copyOf(packetLengths, packetCount * 2);
+      packetFlags = Arrays.copyOf(packetFlags, packetCount * 2);
+    }
+    packetOffsets[packetCount] = offset;
+    packetLengths[packetCount] = length;
+    packetFlags[packetCount] = marker ? HintTrackReader.FLAG_MARKER : 0;
+    packetCount++;
+  }
+
+  /** Writes header and tables followed by the collected payload data */
+  private void writeHintFile(String hintFile, File data, int framePeriod) throws IOException {
+    long dataStart =
+        HintTrackReader.HEADER_SIZE
+            + (long) frameCount * HintTrackReader.FRAME_ENTRY_SIZE
+            + (long) packetCount * HintTrackReader.PACKET_ENTRY_SIZE;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(hintFile)))) {
+      out.writeInt(HintTrackReader.MAGIC);
+      out.writeInt(HintTrackReader.VERSION);
+      out.writeInt(framePeriod);
+      out.writeInt(frameCount);
+      out.writeInt(packetCount);
+      for (int i = 0; i < frameCount; i++) {
+        out.writeInt(firstPacket[i]);
+        out.writeInt(timestamps[i]);
+      }
+      for (int i = 0; i < packetCount; i++) {
+        out.writeLong(dataStart + packetOffsets[i]);
+        out.writeInt(packetLengths[i]);
+        out.writeInt(packetFlags[i]);
+      }
+    }
+    // append the payload data
+    try (FileChannel src = new RandomAccessFile(data, "r").getChannel();
+        FileChannel dst = new RandomAccessFile(hintFile, "rw").getChannel()) {
+      dst.position(dst.size());
+      long pos = 0;
+      long size = src.size();
+      while (pos < size) {
+        pos += src.transferTo(pos, size - pos, dst);
+      }
+    }
+  }
+}
@@ -1,7 +1,14 @@
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Kapselt die JPEG-Logik zum Kodierung und Dekodieren der JPEG-Bilder gemäß RFC-2435.
@@ -92,7 +99,70 @@ public class JpegFrame {
       (byte) 0xea, (byte) 0xf2, (byte) 0xf3, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6, (byte) 0xf7, (byte) 0xf8,
       (byte) 0xf9, (byte) 0xfa };
 
+  /* Die Huffman-Tabellen sind für alle Bilder gleich und werden nur einmal erstellt. */
+  private static final byte[] HUFFMAN_TABLES;
+
+  static {
+    final ByteArrayOutputStream tables = new ByteArrayOutputStream();
+    createHuffmanTable(tables, LUM_DC_CODELENS, LUM_DC_SYMBOLS, 0, 0);
+    createHuffmanTable(tables, LUM_AC_CODELENS, LUM_AC_SYMBOLS, 0, 1);
+    createHuffmanTable(tables, CHM_DC_CODELENS, CHM_DC_SYMBOLS, 1, 0);
+    createHuffmanTable(tables, CHM_AC_CODELENS, CHM_AC_SYMBOLS, 1, 1);
+    HUFFMAN_TABLES = tables.toByteArray();
+  }
+
+  /* Header-Templates für getJpeg(), wenige Einträge genügen für die Videos einer Sitzung. */
+  private static final int MAX_HEADER_TEMPLATES = 16;
+  private static final Map<HeaderKey, byte[]> HEADER_TEMPLATES = new ConcurrentHashMap<>();
+
+  /* Standard-Quantisierungstabellen aus RFC-2435 (Anhang A) in natürlicher Reihenfolge. */
+  private static final int[] JPEG_LUMA_QUANTIZER = {
+      16, 11, 10, 16, 24, 40, 51, 61,
+      12, 12, 14, 19, 26, 58, 60, 55,
+      14, 13, 16, 24, 40, 57, 69, 56,
+      14, 17, 22, 29, 51, 87, 80, 62,
+      18, 22, 37, 56, 68, 109, 103, 77,
+      24, 35, 55, 64, 81, 104, 113, 92,
+      49, 64, 78, 87, 103, 121, 120, 101,
+      72, 92, 95, 98, 112, 100, 103, 99 };
+
+  private static final int[] JPEG_CHROMA_QUANTIZER = {
+      17, 18, 24, 47, 99, 99, 99, 99,
+      18, 21, 26, 66, 99, 99, 99, 99,
+      24, 26, 56, 99, 99, 99, 99, 99,
+      47, 66, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99 };
+
+  /* Position der Koeffizienten in Zickzack-Reihenfolge, wie sie im DQT-Segment abgelegt werden. */
+  private static final int[] ZIGZAG = {
+      0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+      12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+      35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+      58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+  /* Tabellen für Q 1-99 im Format von qTables, werden einmalig erzeugt und von allen Bildern geteilt. */
+  private static final byte[][] STANDARD_Q_TABLES = new byte[100][];
+  /* Zuordnung der Tabellen zum Q-Wert, damit der Sender Standardtabellen erkennt. */
+  private static final Map<ByteBuffer, Integer> STANDARD_Q_BY_TABLES = new HashMap<>();
+
+  static {
+    for (int q = 1; q <= 99; q++) {
+      STANDARD_Q_TABLES[q] = makeTables(q);
+      STANDARD_Q_BY_TABLES.putIfAbsent(ByteBuffer.wrap(STANDARD_Q_TABLES[q]), q);
+    }
+  }
+
   private int offset;
+  private int q = 255;
+  // Restart-Header eines empfangenen Fragments: erstes Intervall im Fragment, F- und L-Bit
+  private int restartCount = 0x3FFF;
+  private boolean restartFirst = true;
+  private boolean restartLast = true;
+  // Anfänge der Restart-Intervalle im Payload, werden bei Bedarf ermittelt
+  private int[] intervalStarts;
   private int ySamplingFactor;
   private int nbQTables;
   private byte[] qTables;
@@ -100,7 +170,7 @@ public class JpegFrame {
   private int width;
   private boolean dri;
   private int restartInterval;
-  private byte[] payload;
+  private ByteBuffer payload;
 
   private JpegFrame() {
   }
@@ -112,39 +182,63 @@ public class JpegFrame {
    * @return {@link JpegFrame}
    */
   public static JpegFrame getFromJpegBytes(final byte[] jpegBytes) {
+    return getFromJpegBuffer(ByteBuffer.wrap(jpegBytes));
+  }
+
+  /**
+   * Analysiert ein JPEG-Bild zwischen Position und Limit des Buffers, z.B. einen Slice einer gemappten Datei. Die Header-Segmente
+   * werden über ihren Offset gelesen, die Scan-Daten werden nicht kopiert, sondern als Slice des Buffers übernommen. Position und
+   * Limit des Buffers bleiben unverändert.
+   *
+   * @param jpeg JPEG-Bild inklusive SOI und EOI
+   * @return {@link JpegFrame}, dessen Payload auf den Buffer verweist
+   */
+  public static JpegFrame getFromJpegBuffer(final ByteBuffer jpeg) {
+    final int end = jpeg.limit();
+    int idx = jpeg.position();
 
     // Prüfe ob SOI vorhanden ist.
-    final byte[] start = Arrays.copyOf(jpegBytes, 2);
-    if (!Arrays.equals(start, SOI_MARKER)) {
+    if (end - idx < 2 || jpeg.get(idx) != SOI_MARKER[0] || jpeg.get(idx + 1) != SOI_MARKER[1]) {
       throw new IllegalStateException("SOI Marker nicht gefunden.");
     }
 
     // Überspringe SOI
-    byte[] data = Arrays.copyOfRange(jpegBytes, 2, jpegBytes.length);
+    idx += 2;
     final JpegFrame jpegFrame = new JpegFrame();
     boolean headerFinish = false;
 
-    while (!headerFinish && data.length > 4) {
+    while (!headerFinish && end - idx > 4) {
       // Ermittle das nächste Header-Segment
-      final byte[] marker = Arrays.copyOf(data, 2); // Segment-Marker
-      final byte[] section = Arrays.copyOfRange(data, 2, data.length); // Segmentdaten
-      final int section_size = byteArrayToInt(Arrays.copyOf(section, 2)); // Segmentlänge
-      final byte[] section_body = Arrays.copyOfRange(data, 4, data.length); // Segment Body
+      if (jpeg.get(idx) != MARKER_TAG_START) {
+        throw new IllegalStateException("Kein Marker an Position " + idx + ".");
+      }
+      final byte marker = jpeg.get(idx + 1); // Segment-Marker
+      if (marker == MARKER_TAG_START) {
+        idx++; // Füllbyte vor dem Marker
+        continue;
+      }
+      final int section_size = readUnsignedShort(jpeg, idx + 2); // Segmentlänge inkl. Längenfeld
+      final int section_body = idx + 4; // Anfang des Segment Body
+      final int section_end = idx + 2 + section_size;
+      if (section_size < 2 || section_end > end) {
+        throw new IllegalStateException("Ungültige Segmentlänge an Position " + idx + ".");
+      }
 
       // Prüfe, welcher Marker gelesen wurde.
-      if (Arrays.equals(marker, DQT_MARKER)) {
-        if (section_body[0] != 0x00) {
-          throw new IllegalStateException("Nur 8-bit Präzesion wird unterstützt.");
+      if (marker == DQT_MARKER[1]) {
+        // Ein Segment kann mehrere Quantisierungstabellen (QT) enthalten, ein Bild mehrere Segmente.
+        for (int table = section_body; table + 65 <= section_end; table += 65) {
+          final int pqTq = jpeg.get(table) & 0xFF;
+          if (pqTq >> 4 != 0) {
+            throw new IllegalStateException("Nur 8-bit Präzesion wird unterstützt.");
+          }
+          jpegFrame.addQTable(pqTq & 0x0F, jpeg, table + 1);
         }
-
-        /* Quantisierungstabelle (QT) ist 64 Byte lang. */
-        jpegFrame.setNbQTables(section_size / 65); // Anzahl QT
-        jpegFrame.setQTables(Arrays.copyOfRange(section_body, 1, jpegFrame.nbQTables * 65)); // Daten der (QT)
-      } else if (Arrays.equals(marker, SOF0_MARKER)) {
+      } else if (marker == SOF0_MARKER[1]) {
         // Höhe und Breite des Bildes.
-        final int height = byteArrayToInt(Arrays.copyOfRange(section_body, 1, 3));
+        final int height = readUnsignedShort(jpeg, section_body + 1);
         jpegFrame.setHeight(height);
-        final int width = byteArrayToInt(Arrays.copyOfRange(section_body, 3, 5));
+        final int width = readUnsignedShort(jpeg, section_body + 3);
         jpegFrame.setWidth(width);
 
         if (width > 2040 || height > 2040) {
@@ -159,33 +253,62 @@ public class JpegFrame {
         // Y - 0x21, Cb - 0x11, Cr - 0x11 => yuvj422p
 
         // Only 3 components are supported by RFC 2435
-        final int numComponents = byteArrayToInt(Arrays.copyOfRange(section_body, 5, 6));
+        final int numComponents = jpeg.get(section_body + 5) & 0xFF;
         if (numComponents != 3) {
           throw new IllegalStateException("Es werden nur 3 Sampling-Komponenten durch RFC-2435 unterstützt.");
         }
         for (int j = 0; j < 3; j++) {
-          final int idx = 6 + j * 3;
-          final int integer = byteArrayToInt(Arrays.copyOfRange(section_body, idx, idx + 1));
+          final int component = section_body + 6 + j * 3;
+          final int samplingFactor = jpeg.get(component + 1) & 0xFF;
 
-          if (integer == 1) {
-            jpegFrame.setYSamplingFactor(byteArrayToInt(Arrays.copyOfRange(section_body, idx + 1, idx + 2)));
-          } else if (!Arrays.equals(new byte[] { (byte) 0x11 }, Arrays.copyOfRange(section_body, idx + 1, idx + 2))) {
+          if ((jpeg.get(component) & 0xFF) == 1) {
+            jpegFrame.setYSamplingFactor(samplingFactor);
+          } else if (samplingFactor != 0x11) {
             throw new IllegalStateException("Sampling Faktor ist nit unterstützt durch RFC-2435.");
           }
         }
-      } else if (Arrays.equals(marker, DRI_MARKER)) {
+      } else if (marker == DRI_MARKER[1]) {
         jpegFrame.setDri(true);
-        jpegFrame.setRestartInterval(byteArrayToInt(Arrays.copyOf(data, 2)));
-      } else if (Arrays.equals(marker, SOS_MARKER)) {
+        jpegFrame.setRestartInterval(readUnsignedShort(jpeg, section_body));
+      } else if (marker == SOS_MARKER[1]) {
         headerFinish = true;
       }
 
-      data = Arrays.copyOfRange(data, 2 + section_size, data.length);
+      idx = section_end;
     }
-    jpegFrame.setPayload(data);
+
+    // Die Scan-Daten beginnen hinter dem SOS-Segment und reichen bis zum Ende des Bildes.
+    final ByteBuffer payload = jpeg.duplicate();
+    payload.limit(end);
+    payload.position(Math.min(idx, end));
+    jpegFrame.payload = payload.slice();
+
+    // Entsprechen die Tabellen den skalierten Standardtabellen, genügt die Übertragung des Q-Werts.
+    jpegFrame.q = jpegFrame.qTables == null ? 255 : STANDARD_Q_BY_TABLES.getOrDefault(ByteBuffer.wrap(jpegFrame.qTables), 255);
     return jpegFrame;
   }
 
+  /**
+   * Übernimmt eine Quantisierungstabelle. Die Tabellen werden nach ihrer Nummer abgelegt, jeweils getrennt durch das Byte mit
+   * Präzision und Nummer der folgenden Tabelle, wie im DQT-Segment.
+   *
+   * @param tableNo Nummer der Tabelle
+   * @param jpeg Buffer mit dem JPEG-Bild
+   * @param offset Offset der 64 Byte der Tabelle
+   */
+  private void addQTable(final int tableNo, final ByteBuffer jpeg, final int offset) {
+    if (tableNo >= nbQTables) {
+      nbQTables = tableNo + 1;
+      qTables = qTables == null ? new byte[nbQTables * 65 - 1] : Arrays.copyOf(qTables, nbQTables * 65 - 1);
+    }
+    if (tableNo > 0) {
+      qTables[65 * tableNo - 1] = (byte) tableNo;
+    }
+    for (int i = 0; i < 64; i++) {
+      qTables[65 * tableNo + i] = jpeg.get(offset + i);
+    }
+  }
+
   /**
    * Erstellt aud den Payloaddaten eines RTP-Paketes eine neue Instanz des JpegFrame.
    *
@@ -193,55 +316,235 @@ public class JpegFrame {
    * @return ertslltes JpegFrame
    */
   public static JpegFrame getFromRtpPayload(final byte[] payload) {
+    return getFromRtpPayload(ByteBuffer.wrap(payload));
+  }
+
+  /**
+   * Erstellt aus dem Payload eines RTP-Paketes eine neue Instanz, ohne die Scan-Daten zu kopieren. Der Payload beginnt an der
+   * Position des Buffers, diese wird nicht verändert.
+   *
+   * @param rtpPayload payload des RTP-Pakets
+   * @return erstelltes JpegFrame
+   */
+  public static JpegFrame getFromRtpPayload(final ByteBuffer rtpPayload) {
+    final ByteBuffer payload = rtpPayload.slice();
     final JpegFrame jpegFrame = new JpegFrame();
 
-    jpegFrame.offset = byteArrayToInt(Arrays.copyOfRange(payload, 1, 4));
+    jpegFrame.offset = (payload.get(1) & 0xFF) << 16 | readUnsignedShort(payload, 2);
 
-    final int type = byteArrayToInt(Arrays.copyOfRange(payload, 4, 5));
+    final int type = payload.get(4) & 0xFF;
     // Setze y_sampling_factor und dri entsprechend
     jpegFrame.setSamplingFactorAndDriFromType(type);
 
-    final int q = byteArrayToInt(Arrays.copyOfRange(payload, 5, 6));
-    jpegFrame.width = byteArrayToInt(Arrays.copyOfRange(payload, 6, 7)) * 8;
-    jpegFrame.height = byteArrayToInt(Arrays.copyOfRange(payload, 7, 8)) * 8;
+    final int q = payload.get(5) & 0xFF;
+    jpegFrame.width = (payload.get(6) & 0xFF) * 8;
+    jpegFrame.height = (payload.get(7) & 0xFF) * 8;
     if (jpegFrame.dri) { // Restart-Header is present
-      jpegFrame.restartInterval = byteArrayToInt(Arrays.copyOfRange(payload, 8, 10));
+      jpegFrame.restartInterval = readUnsignedShort(payload, 8);
+      final int restartCount = readUnsignedShort(payload, 10);
+      jpegFrame.restartFirst = (restartCount & 0x8000) != 0;
+      jpegFrame.restartLast = (restartCount & 0x4000) != 0;
+      jpegFrame.restartCount = restartCount & 0x3FFF;
     }
 
     final int offsetToQuantizationHeader = 8 + (jpegFrame.dri ? 4 : 0);
-    if (q >= 127 && jpegFrame.offset == 0) { // Analyse der Quantization Table erfolgt
+    jpegFrame.q = q;
+    if (q < 128) {
+      // Q 1-99: skalierte Standardtabellen, diese werden nicht übertragen.
+      if (q < 1 || q > 99) {
+        throw new IllegalStateException("Q-Wert " + q + " ist durch RFC-2435 reserviert.");
+      }
+      jpegFrame.nbQTables = 2;
+      jpegFrame.qTables = STANDARD_Q_TABLES[q];
+    } else if (jpegFrame.offset == 0) { // Analyse der Quantization Table erfolgt
       // nur im ersten Paket eines Frames.
-      final int length = byteArrayToInt(Arrays.copyOfRange(payload, offsetToQuantizationHeader + 2, offsetToQuantizationHeader + 4));
-      final byte[] quantizationTableData = Arrays.copyOfRange(payload, offsetToQuantizationHeader + 4, offsetToQuantizationHeader + 4 + length);
+      final int length = readUnsignedShort(payload, offsetToQuantizationHeader + 2);
+      final int quantizationTableData = offsetToQuantizationHeader + 4;
 
       jpegFrame.nbQTables = length / 64; // Quantisierungstabelle ist stets 64 Byte lang
       jpegFrame.qTables = new byte[(jpegFrame.nbQTables * 65) - 1];
       for (int i = 0; i < jpegFrame.nbQTables; i++) {
-        System.arraycopy(quantizationTableData, 64 * i, jpegFrame.qTables, 65 * i, 64);
+        payload.get(quantizationTableData + 64 * i, jpegFrame.qTables, 65 * i, 64);
         if (i > 0) {
-          jpegFrame.qTables[65 * i + 64] = 0x00;
+          jpegFrame.qTables[65 * i - 1] = (byte) i; // Präzision und Nummer der Tabelle im DQT-Segment
         }
       }
     }
 
     /* Quantisierungstabelle ist nur im ersten Paket enthalten. Länge ergibt sich aus vier fixen Bytes sowie je Tabelle 64 Byte. */
-    final int quantizationTableHeaderLength = jpegFrame.offset == 0 ? 4 + jpegFrame.nbQTables * 64 : 0;
-    final int offsetToPayload = offsetToQuantizationHeader + quantizationTableHeaderLength;
-    jpegFrame.setPayload(Arrays.copyOfRange(payload, offsetToPayload, payload.length));
+    final int quantizationTableHeaderLength = jpegFrame.offset == 0 && q >= 128 ? 4 + jpegFrame.nbQTables * 64 : 0;
+    jpegFrame.payload = payload.position(offsetToQuantizationHeader + quantizationTableHeaderLength).slice();
     return jpegFrame;
   }
 
   /**
    * Kombiniere Liste von RTP-Paketen zu einem JPEG
    * @param list der RTP-Pakete
-   * @return JPEG
+   * @return JPEG oder NULL, falls Fragmente des Bildes fehlen
    */
   public static byte[] combineToOneImage(final List<RTPpacket> list) {
-    ArrayList<JpegFrame> jpeg = new ArrayList<>();
-    list.forEach( rtp -> jpeg.add( JpegFrame.getFromRtpPayload( rtp.getpayload()) ) );
+    final JpegFrame jpegs = combineWithConcealment(list, null);
+    return jpegs == null ? null : jpegs.getJpeg();
+  }
+
+  /**
+   * Kombiniert die empfangenen RTP-Pakete eines Bildes. Fehlen Fragmente, werden bei Bildern mit Restart-Intervall die verlorenen
+   * Intervalle aus dem vorherigen Bild übernommen, da jedes Intervall unabhängig dekodiert werden kann.
+   *
+   * @param list empfangene RTP-Pakete eines Bildes
+   * @param previous zuletzt angezeigtes Bild oder NULL
+   * @return vollständiges Bild oder NULL, falls es nicht rekonstruiert werden kann
+   */
+  public static JpegFrame combineWithConcealment(final List<RTPpacket> list, final JpegFrame previous) {
+    final List<JpegFrame> fragments = new ArrayList<>();
+    boolean lastReceived = false; // Fragment mit Marker-Bit
+    for (final RTPpacket rtp : list) {
+      fragments.add(getFromRtpPayload(rtp.getPayloadBuffer())); // Sicht auf den Payload, keine Kopie
+      lastReceived |= rtp.getmarker() == 1;
+    }
+    fragments.sort(Comparator.comparingInt(JpegFrame::getOffset));
+
+    // Prüfe, ob die Fragmente lückenlos ab Offset 0 vorliegen
+    boolean complete = lastReceived && fragments.get(0).offset == 0;
+    for (int i = 1; complete && i < fragments.size(); i++) {
+      final JpegFrame before = fragments.get(i - 1);
+      complete = fragments.get(i).offset == before.offset + before.payload.remaining();
+    }
+    if (complete) {
+      return combineToOneFrame(fragments);
+    }
+    return concealLostIntervals(fragments, previous);
+  }
 
-    JpegFrame jpegs = JpegFrame.combineToOneFrame( jpeg );
-    return jpegs.getJpeg();
+  /**
+   * Ersetzt die Restart-Intervalle, die in den Fragmenten fehlen, durch die Intervalle an derselben Position im vorherigen Bild.
+   *
+   * @param fragments empfangene Fragmente, nach Offset sortiert
+   * @param previous zuletzt angezeigtes, vollständiges Bild
+   * @return zusammengesetztes Bild oder NULL, falls das Bild keine Restart-Intervalle hat oder nicht zum vorherigen passt
+   */
+  private static JpegFrame concealLostIntervals(final List<JpegFrame> fragments, final JpegFrame previous) {
+    final JpegFrame first = fragments.get(0);
+    if (previous == null || !first.dri || first.restartInterval == 0 || first.width != previous.width
+        || first.height != previous.height || first.ySamplingFactor != previous.ySamplingFactor
+        || first.restartInterval != previous.restartInterval) {
+      return null;
+    }
+    final int[] previousIntervals = previous.getIntervalStarts();
+    final int nbIntervals = previousIntervals.length;
+
+    // Fragmente an ihrem Offset ablegen
+    final JpegFrame lastFragment = fragments.get(fragments.size() - 1);
+    final byte[] data = new byte[lastFragment.offset + lastFragment.payload.remaining()];
+    for (final JpegFrame fragment : fragments) {
+      if (fragment.restartCount == 0x3FFF) {
+        return null; // Fragmente sind nicht an den Restart-Intervallen ausgerichtet
+      }
+      fragment.getPayload().get(data, fragment.offset, fragment.payload.remaining());
+    }
+
+    // Vollständig empfangene Intervalle ermitteln, jeweils innerhalb einer lückenlosen Folge von Fragmenten
+    final int[] starts = new int[nbIntervals];
+    final int[] ends = new int[nbIntervals];
+    int i = 0;
+    while (i < fragments.size()) {
+      final JpegFrame runFirst = fragments.get(i);
+      int runEnd = runFirst.offset + runFirst.payload.remaining();
+      while (i + 1 < fragments.size() && fragments.get(i + 1).offset == runEnd) {
+        i++;
+        runEnd += fragments.get(i).payload.remaining();
+      }
+      final boolean runLast = fragments.get(i).restartLast;
+      i++;
+
+      // Beginnt die Folge mitten in einem Intervall, zählt erst das nächste
+      int interval = runFirst.restartFirst ? runFirst.restartCount : -1;
+      int nextInterval = runFirst.restartCount + 1;
+      int segmentStart = runFirst.offset;
+      for (int pos = runFirst.offset; pos + 1 < runEnd; pos++) {
+        if (data[pos] == MARKER_TAG_START && (data[pos + 1] & 0xF8) == 0xD0) {
+          pos++;
+          if (interval >= 0 && interval < nbIntervals) {
+            starts[interval] = segmentStart;
+            ends[interval] = pos + 1;
+          }
+          interval = interval >= 0 ? interval + 1 : nextInterval;
+          segmentStart = pos + 1;
+        }
+      }
+      // Das letzte Intervall endet mit dem EOI-Marker
+      if (runLast && interval >= 0 && interval < nbIntervals && segmentStart < runEnd) {
+        starts[interval] = segmentStart;
+        ends[interval] = runEnd;
+      }
+    }
+
+    // Bild aus empfangenen und ersetzten Intervallen zusammensetzen
+    int length = 0;
+    for (int j = 0; j < nbIntervals; j++) {
+      length += ends[j] > starts[j] ? ends[j] - starts[j] : previous.getIntervalLength(j);
+    }
+    final byte[] jpeg = new byte[length];
+    int pos = 0;
+    for (int j = 0; j < nbIntervals; j++) {
+      if (ends[j] > starts[j]) {
+        System.arraycopy(data, starts[j], jpeg, pos, ends[j] - starts[j]);
+        pos += ends[j] - starts[j];
+      } else {
+        final ByteBuffer interval = previous.getPayload();
+        interval.position(interval.position() + previousIntervals[j]);
+        interval.get(jpeg, pos, previous.getIntervalLength(j));
+        pos += previous.getIntervalLength(j);
+      }
+    }
+
+    final JpegFrame result = new JpegFrame();
+    result.ySamplingFactor = first.ySamplingFactor;
+    result.width = first.width;
+    result.height = first.height;
+    result.dri = true;
+    result.restartInterval = first.restartInterval;
+    result.q = first.q;
+    // Tabellen stehen im ersten Fragment oder sind durch Q festgelegt, sonst die des vorherigen Bildes
+    final boolean tables = first.qTables != null && (first.offset == 0 || first.q < 128);
+    result.nbQTables = tables ? first.nbQTables : previous.nbQTables;
+    result.qTables = tables ? first.qTables : previous.qTables;
+    result.payload = ByteBuffer.wrap(jpeg);
+    return result;
+  }
+
+  /**
+   * Liefert die Anfänge der Restart-Intervalle in den Scan-Daten, ermittelt über die RST-Marker.
+   *
+   * @return Offsets der Intervalle im Payload
+   */
+  private int[] getIntervalStarts() {
+    if (intervalStarts == null) {
+      int[] starts = new int[64];
+      int count = 1; // das erste Intervall beginnt bei 0
+      final int start = payload.position();
+      for (int pos = start; pos + 1 < payload.limit(); pos++) {
+        if (payload.get(pos) == MARKER_TAG_START && (payload.get(pos + 1) & 0xF8) == 0xD0) {
+          pos++;
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+          }
+          starts[count++] = pos + 1 - start;
+        }
+      }
+      intervalStarts = Arrays.copyOf(starts, count);
+    }
+    return intervalStarts;
+  }
+
+  /**
+   * @param interval Nummer des Restart-Intervalls
+   * @return Länge des Intervalls inklusive RST- bzw. EOI-Marker
+   */
+  private int getIntervalLength(final int interval) {
+    final int[] starts = getIntervalStarts();
+    final int end = interval + 1 < starts.length ? starts[interval + 1] : payload.remaining();
+    return end - starts[interval];
   }
 
 
@@ -265,11 +568,11 @@ public class JpegFrame {
     // Add all Bytes of each payload part to a list
 
     final JpegFrame lastJpeg = frames.get(frames.size() - 1);
-    final int length = lastJpeg.getPayload().length + lastJpeg.getOffset();
+    final int length = lastJpeg.payload.remaining() + lastJpeg.getOffset();
     byte[] jpeg = new byte[length];
 
     for (final JpegFrame frame : frames) {
-      System.arraycopy(frame.getPayload(), 0, jpeg, frame.getOffset(), frame.getPayload().length);
+      frame.getPayload().get(jpeg, frame.getOffset(), frame.payload.remaining());
     }
 
     result.setPayload(jpeg);
@@ -284,29 +587,155 @@ public class JpegFrame {
    * @return Array von bytes
    */
   public byte[] getAsRfc2435Bytes() {
-    int idx = 0;
-    // Offset ist in diesem Fall immer null
+    final int headerLength = getRfc2435HeaderLength(offset);
+    final byte[] rfcHeader = new byte[headerLength + payload.remaining()];
+    writeRfc2435Header(rfcHeader, offset);
+
+    // Zuletzt JPEG-Payload
+    payload.duplicate().get(rfcHeader, headerLength, payload.remaining());
+
+    return rfcHeader;
+  }
+
+  /**
+   * Teilt das Bild in mehrere RFC-2435 Payloads auf, von denen keiner länger als maxSize ist. Jedes
+   * Fragment enthält den RFC-Header mit seinem Fragment-Offset und ggf. den Restart-Header, die
+   * Quantisierungstabellen sind nur im ersten Fragment enthalten.
+   *
+   * @param maxSize maximale Länge eines Payloads inklusive aller Header
+   * @return Liste der Fragmente in der Reihenfolge ihrer Offsets
+   * @see #fragmentRfc2435Payload(ByteBuffer, int)
+   */
+  public List<byte[]> getAsRfc2435Fragments(final int maxSize) {
+    final List<byte[]> fragments = new ArrayList<>();
+    for (final ByteBuffer[] fragment : fragmentRfc2435Payload(ByteBuffer.wrap(getAsRfc2435Bytes()), maxSize)) {
+      final byte[] bytes = new byte[fragment[0].remaining() + fragment[1].remaining()];
+      ByteBuffer.wrap(bytes).put(fragment[0]).put(fragment[1]);
+      fragments.add(bytes);
+    }
+    return fragments;
+  }
+
+  /**
+   * Teilt einen vollständigen RFC-2435 Payload (Fragment-Offset 0), wie ihn {@link #getAsRfc2435Bytes()} liefert, in Fragmente von
+   * höchstens maxSize Bytes. Das Bild wird dabei nicht erneut analysiert. Jedes Fragment besteht aus einem eigenen kleinen Buffer
+   * mit RFC-Header und ggf. Restart-Header mit seinem Fragment-Offset, beim ersten Fragment auch den Quantisierungstabellen, und
+   * einer Sicht auf die Scan-Daten des Payloads. Die Scan-Daten werden nicht kopiert, der Payload darf nicht verändert werden.
+   *
+   * <p>Bei Bildern mit Restart-Intervall enden die Fragmente an den RST-Markern, sodass jedes Fragment ganze Restart-Intervalle
+   * enthält und der Empfänger verlorene Intervalle ersetzen kann. Nur ein Intervall, das größer als ein Fragment ist, wird geteilt
+   * und über die Bits F und L des Restart-Headers gekennzeichnet (RFC-2435, Abschnitt 3.1.7).
+   *
+   * @param rfc2435 RFC-2435 Payload eines ganzen Bildes, Position und Limit bleiben unverändert
+   * @param maxSize maximale Länge eines Payloads inklusive aller Header
+   * @return Liste der Fragmente in der Reihenfolge ihrer Offsets, je Header und Scan-Daten mit Position 0
+   */
+  public static List<ByteBuffer[]> fragmentRfc2435Payload(final ByteBuffer rfc2435, final int maxSize) {
+    final int start = rfc2435.position();
+    final int type = rfc2435.get(start + 4) & 0xFF;
+    final int q = rfc2435.get(start + 5) & 0xFF;
+    // Typen 64-127 enthalten einen Restart-Header, Q ab 128 die Quantisierungstabellen
+    final int mainLength = type >= 64 && type < 128 ? 12 : 8;
+    final int headerLength = q >= 128 ? mainLength + 4 + readUnsignedShort(rfc2435, start + mainLength + 2) : mainLength;
+    if (headerLength >= maxSize) {
+      throw new IllegalArgumentException("Fragmentgröße " + maxSize + " ist kleiner als der RFC-2435 Header.");
+    }
+    final boolean restart = mainLength == 12 && readUnsignedShort(rfc2435, start + 8) > 0;
+    final int dataStart = start + headerLength;
+    final int dataEnd = rfc2435.limit();
+
+    final List<ByteBuffer[]> fragments = new ArrayList<>();
+    if (!restart && dataEnd - start <= maxSize) {
+      // Bild passt in ein Paket, der Header bleibt unverändert
+      fragments.add(new ByteBuffer[] {rfc2435.slice(start, headerLength), rfc2435.slice(dataStart, dataEnd - dataStart)});
+      return fragments;
+    }
+
+    int pos = dataStart;
+    int interval = 0; // Nummer des Restart-Intervalls an pos
+    boolean intervalStart = true; // pos ist der Anfang eines Restart-Intervalls
+    do {
+      final boolean first = pos == dataStart;
+      final int fragmentHeader = first ? headerLength : mainLength;
+      final int limit = Math.min(dataEnd, pos + maxSize - fragmentHeader);
+      int end = limit;
+      int markers = 0; // RST-Marker bis end
+      if (restart && limit < dataEnd) {
+        // Suche die letzte Intervallgrenze (hinter einem RST-Marker) im Fragment
+        int count = 0;
+        for (int i = pos; i + 1 < limit; i++) {
+          if (rfc2435.get(i) == MARKER_TAG_START && (rfc2435.get(i + 1) & 0xF8) == 0xD0) {
+            count++;
+            i++;
+            end = i + 1;
+            markers = count;
+          }
+        }
+        if (markers == 0) {
+          end = limit; // Intervall ist größer als ein Fragment und wird geteilt
+        }
+      }
+      final boolean intervalEnd = end == dataEnd || markers > 0;
+
+      final byte[] fragment = new byte[fragmentHeader];
+      rfc2435.get(start, fragment, 0, fragmentHeader);
+      final int fragmentOffset = pos - dataStart;
+      fragment[1] = (byte) (fragmentOffset >> 16);
+      fragment[2] = (byte) (fragmentOffset >> 8);
+      fragment[3] = (byte) (fragmentOffset & 0xff);
+      if (restart) {
+        // F, L und Nummer des ersten Restart-Intervalls im Fragment
+        final int restartCount = (intervalStart ? 0x8000 : 0) | (intervalEnd ? 0x4000 : 0) | (interval & 0x3FFF);
+        fragment[10] = (byte) (restartCount >> 8);
+        fragment[11] = (byte) (restartCount & 0xff);
+      }
+      fragments.add(new ByteBuffer[] {ByteBuffer.wrap(fragment), rfc2435.slice(pos, end - pos)});
+
+      interval += markers;
+      intervalStart = markers > 0;
+      pos = end;
+    } while (pos < dataEnd);
+    return fragments;
+  }
+
+  /**
+   * Liefert die Länge aller RFC-2435 Header eines Fragments.
+   *
+   * @param fragmentOffset Offset des Fragments im JPEG-Payload
+   * @return Länge in Bytes
+   */
+  private int getRfc2435HeaderLength(final int fragmentOffset) {
     int headerLength = 8;
     if (this.dri) {
       headerLength = headerLength + 4;
     }
-    final int nb_qtables = this.nbQTables;
-    if (nb_qtables > 0 && offset == 0) {
-      headerLength = headerLength + 4 + (nb_qtables * 64);
+    if (nbQTables > 0 && fragmentOffset == 0 && q >= 128) {
+      headerLength = headerLength + 4 + (nbQTables * 64);
     }
-    headerLength = headerLength + payload.length;
-    final byte[] rfcHeader = new byte[headerLength];
+    return headerLength;
+  }
+
+  /**
+   * Schreibt RFC-Header, Restart-Header sowie Header und Daten der Quantisierungstabellen an den
+   * Anfang des Arrays.
+   *
+   * @param rfcHeader Ziel, mindestens {@link #getRfc2435HeaderLength(int)} Bytes lang
+   * @param fragmentOffset Offset des Fragments im JPEG-Payload
+   */
+  private void writeRfc2435Header(final byte[] rfcHeader, final int fragmentOffset) {
+    int idx = 0;
+    final int nb_qtables = this.nbQTables;
     idx++;
     rfcHeader[idx] = 0; // type-specfic
-    rfcHeader[idx] = (byte) (offset >> 16);
+    rfcHeader[idx] = (byte) (fragmentOffset >> 16);
     idx++;
-    rfcHeader[idx] = (byte) (offset >> 8);
+    rfcHeader[idx] = (byte) (fragmentOffset >> 8);
     idx++;
-    rfcHeader[idx] = (byte) (offset & 0xff);
+    rfcHeader[idx] = (byte) (fragmentOffset & 0xff);
     idx++;
     rfcHeader[idx] = (byte) (getType() & 0xff);
     idx++; // Type
-    rfcHeader[idx] = (byte) (255 & 0xff);
+    rfcHeader[idx] = (byte) (q & 0xff);
     idx++; // Q
     rfcHeader[idx] = (byte) (((width + 7) & ~7) >> 3);
     idx++; // Breite Aufgerundet auf 8ter Kompliment und geteilt durch 8
@@ -326,7 +755,7 @@ public class JpegFrame {
     }
 
     // wenn Quantisationstabellen vorhanden sind, dann alle hinzufügen
-    if (offset == 0 && nb_qtables != 0) {
+    if (fragmentOffset == 0 && nb_qtables != 0 && q >= 128) {
       rfcHeader[idx] = 0;
       idx++;
       rfcHeader[idx] = 0;
@@ -341,109 +770,160 @@ public class JpegFrame {
         idx += 64;
       }
     }
-
-    // Zuletzt JPEG-Payload
-    System.arraycopy(payload, 0, rfcHeader, idx, payload.length);
-
-    return rfcHeader;
   }
 
-  public byte[] getPayload() {
-    return payload;
+  /** @return JPEG-Payload als eigener Buffer, der Inhalt wird nicht kopiert */
+  public ByteBuffer getPayload() {
+    return payload.duplicate();
   }
 
   public int getOffset() {
     return offset;
   }
 
+  /**
+   * Setzt das vollständige JPEG-Bild aus dem zwischengespeicherten Header-Template und den Scan-Daten zusammen.
+   *
+   * @return JPEG-Bild inklusive SOI und EOI
+   */
   public byte[] getJpeg() {
-    final List<Byte> result = new ArrayList<>();
-    result.add(SOI_MARKER[0]);
-    result.add(SOI_MARKER[1]);
-
-    if (restartInterval > 0) {
-      result.add(DRI_MARKER[0]);
-      result.add(DRI_MARKER[1]);
-      result.add((byte) 0x00);
-      result.add((byte) 0x04);
-      result.add((byte) (restartInterval >> 8));
-      result.add((byte) (restartInterval));
-    }
+    final byte[] jpeg = new byte[getJpegLength()];
+    writeJpeg(jpeg, 0);
+    return jpeg;
+  }
 
-    result.add(DQT_MARKER[0]);
-    result.add(DQT_MARKER[1]);
-    final int qTableLength = (nbQTables * 65) + 2;
-    result.add((byte) (qTableLength >> 8));
-    result.add((byte) (qTableLength));
-    result.add((byte) 0x00);
-    for (final byte b : qTables) {
-      result.add(b);
-    }
+  /** @return Länge des JPEG-Bildes, das von {@link #writeJpeg(byte[], int)} geschrieben wird */
+  public int getJpegLength() {
+    return getHeaderTemplate().length + getScanLength();
+  }
 
-    // Huffman Tables
-    result.addAll(createHuffmanTable(LUM_DC_CODELENS, LUM_DC_SYMBOLS, 0, 0));
-    result.addAll(createHuffmanTable(LUM_AC_CODELENS, LUM_AC_SYMBOLS, 0, 1));
-    result.addAll(createHuffmanTable(CHM_DC_CODELENS, CHM_DC_SYMBOLS, 1, 0));
-    result.addAll(createHuffmanTable(CHM_AC_CODELENS, CHM_AC_SYMBOLS, 1, 1));
-
-    result.add(SOF0_MARKER[0]);
-    result.add(SOF0_MARKER[1]);// SOF
-    result.add((byte) 0x00);
-    result.add((byte) 0x11);
-    result.add((byte) 0x08);
-    result.add((byte) (height >> 8));
-    result.add((byte) height);
-    result.add((byte) (width >> 8));
-    result.add((byte) width);
-
-    result.add((byte) 0x03);
-    result.add((byte) 0x01);
-    result.add((byte) (ySamplingFactor));
-    result.add((byte) 0x00);
-
-    result.add((byte) 0x02);
-    result.add((byte) 0x11);
-    result.add((byte) 0x00);
-
-    result.add((byte) 0x03);
-    result.add((byte) 0x11);
-    result.add((byte) 0x00);
-
-    result.add(SOS_MARKER[0]);
-    result.add(SOS_MARKER[1]);// Marker SOS
-    result.add((byte) 0x00); // Length
-    result.add((byte) 0x0c); // Length - 12
-    result.add((byte) 0x03); // Number of components
-    result.add((byte) 0x01); // Component Number
-    result.add((byte) 0x00); // Matrix Number
-    result.add((byte) 0x02); // Component Number
-    result.add((byte) 0x11); // Horizontal or Vertical Sample
-    result.add((byte) 0x03); // Component Number
-    result.add((byte) 0x11); // Horizontal or Vertical Sample
-    result.add((byte) 0x00); // Start of spectral
-    result.add((byte) 0x3f); // End of spectral (63)
-    result.add((byte) 0x00); // Successive approximation bit position (high, low)
+  /**
+   * Schreibt das JPEG-Bild in einen vorhandenen Puffer, der für mehrere Bilder wiederverwendet werden kann. Header und Scan-Daten
+   * werden jeweils mit einer einzigen Kopie übernommen.
+   *
+   * @param dst Zielpuffer, ab off mindestens {@link #getJpegLength()} Bytes lang
+   * @param off Position im Zielpuffer
+   * @return Länge des geschriebenen Bildes
+   */
+  public int writeJpeg(final byte[] dst, final int off) {
+    final byte[] header = getHeaderTemplate();
+    final int scanLength = getScanLength();
+    System.arraycopy(header, 0, dst, off, header.length);
+    payload.duplicate().get(dst, off + header.length, scanLength);
+    return header.length + scanLength;
+  }
 
+  /**
+   * Liefert die Länge der Scan-Daten bis einschließlich des EOI-Markers. Fehlt der EOI-Marker, wird der gesamte Payload übernommen.
+   *
+   * @return Länge in Bytes
+   */
+  private int getScanLength() {
+    final int start = payload.position();
+    final int end = payload.limit();
+    // Normalfall: der Payload endet mit dem EOI-Marker
+    if (end - start >= 2 && payload.get(end - 2) == EOI_MARKER[0] && payload.get(end - 1) == EOI_MARKER[1]) {
+      return end - start;
+    }
     boolean marker = false;
-    for (final byte b : payload) {
+    for (int i = start; i < end; i++) {
+      final byte b = payload.get(i);
       if (b == MARKER_TAG_START) {
         marker = true;
       } else if (marker && b == EOI_MARKER[1]) {
-        result.add(b);
-        break;
+        return i + 1 - start;
       } else {
         marker = false;
       }
-      result.add(b);
     }
+    return end - start;
+  }
+
+  /**
+   * Liefert die Header des JPEG-Bildes (SOI, DRI, DQT, DHT, SOF0 und SOS). Da sich diese innerhalb eines Videos nicht ändern,
+   * werden sie je Kombination aus Größe, Typ, Restart-Intervall und Quantisierungstabellen nur einmal erstellt.
+   *
+   * @return Header-Template, darf nicht verändert werden
+   */
+  private byte[] getHeaderTemplate() {
+    final HeaderKey key = new HeaderKey(width, height, ySamplingFactor, restartInterval, qTables);
+    byte[] header = HEADER_TEMPLATES.get(key);
+    if (header == null) {
+      header = createHeader();
+      if (HEADER_TEMPLATES.size() >= MAX_HEADER_TEMPLATES) {
+        HEADER_TEMPLATES.clear();
+      }
+      HEADER_TEMPLATES.put(key, header);
+    }
+    return header;
+  }
+
+  /**
+   * Erstellt die JPEG-Header für die Werte aus dem RFC-2435 Header.
+   *
+   * @return Header von SOI bis einschließlich SOS
+   */
+  private byte[] createHeader() {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(1024);
+    result.write(SOI_MARKER, 0, 2);
 
-    // Transformiere List in ein byte Array
-    final byte[] bytes = new byte[result.size()];
-    for (int i = 0; i < bytes.length; i++) {
-      bytes[i] = result.get(i);
+    if (restartInterval > 0) {
+      result.write(DRI_MARKER, 0, 2);
+      result.write(0x00);
+      result.write(0x04);
+      result.write(restartInterval >> 8);
+      result.write(restartInterval);
     }
 
-    return bytes;
+    result.write(DQT_MARKER, 0, 2);
+    final int qTableLength = (nbQTables * 65) + 2;
+    result.write(qTableLength >> 8);
+    result.write(qTableLength);
+    result.write(0x00);
+    result.write(qTables, 0, qTables.length);
+
+    // Huffman Tables
+    result.write(HUFFMAN_TABLES, 0, HUFFMAN_TABLES.length);
+
+    result.write(SOF0_MARKER, 0, 2); // SOF
+    result.write(0x00);
+    result.write(0x11);
+    result.write(0x08);
+    result.write(height >> 8);
+    result.write(height);
+    result.write(width >> 8);
+    result.write(width);
+
+    result.write(0x03);
+    result.write(0x01);
+    result.write(ySamplingFactor);
+    result.write(0x00);
+
+    // Chrominanz verwendet die zweite Quantisierungstabelle, sofern vorhanden
+    final int chromaTable = nbQTables > 1 ? 0x01 : 0x00;
+    result.write(0x02);
+    result.write(0x11);
+    result.write(chromaTable);
+
+    result.write(0x03);
+    result.write(0x11);
+    result.write(chromaTable);
+
+    result.write(SOS_MARKER, 0, 2); // Marker SOS
+    result.write(0x00); // Length
+    result.write(0x0c); // Length - 12
+    result.write(0x03); // Number of components
+    result.write(0x01); // Component Number
+    result.write(0x00); // Matrix Number
+    result.write(0x02); // Component Number
+    result.write(0x11); // Horizontal or Vertical Sample
+    result.write(0x03); // Component Number
+    result.write(0x11); // Horizontal or Vertical Sample
+    result.write(0x00); // Start of spectral
+    result.write(0x3f); // End of spectral (63)
+    result.write(0x00); // Successive approximation bit position (high, low)
+
+    return result.toByteArray();
   }
 
   public void setYSamplingFactor(final int ySamplingFactor) {
@@ -475,7 +955,8 @@ public class JpegFrame {
   }
 
   public void setPayload(final byte[] payload) {
-    this.payload = payload;
+    this.payload = ByteBuffer.wrap(payload);
+    this.intervalStarts = null;
   }
 
   /**
@@ -527,46 +1008,86 @@ public class JpegFrame {
   }
 
   /**
-   * Transformiert ein byte Array (4, 2 oder 1 stellig) in einen Integer (int).
-   *
-   * @param bytes byte Array zur Transformation
+   * Erzeugt die Quantisierungstabellen für Luminanz und Chrominanz zu einem Q-Wert gemäß RFC-2435 (Anhang A).
    *
-   * @return transformierten int
+   * @param q Q-Wert von 1 bis 99
+   * @return Tabellen im Format von qTables
    */
-  private static int byteArrayToInt(final byte[] bytes) {
-    if (bytes.length == 3) {
-      return (bytes[0] & 0xFF) << 16 | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF);
-    } else if (bytes.length == 2) {
-      return bytes[1] & 0xFF | (bytes[0] & 0xFF) << 8;
-    } else if (bytes.length == 1) {
-      return bytes[0] & 0xFF;
-    } else {
-      throw new UnsupportedOperationException("Biser nicht inplementiert, da nicht unterstützt.");
+  private static byte[] makeTables(final int q) {
+    final int scale = q < 50 ? 5000 / q : 200 - q * 2;
+    final byte[] tables = new byte[2 * 65 - 1];
+    for (int i = 0; i < 64; i++) {
+      // Begrenzung der Werte auf 1 bis 255
+      tables[i] = (byte) Math.min(Math.max((JPEG_LUMA_QUANTIZER[ZIGZAG[i]] * scale + 50) / 100, 1), 255);
+      tables[65 + i] = (byte) Math.min(Math.max((JPEG_CHROMA_QUANTIZER[ZIGZAG[i]] * scale + 50) / 100, 1), 255);
     }
+    tables[64] = 1; // Präzision und Nummer der Chrominanz-Tabelle
+    return tables;
+  }
+
+  /**
+   * Liest zwei Bytes ab der absoluten Position als vorzeichenlose Zahl (Big Endian).
+   *
+   * @param buffer Buffer
+   * @param index Position des höherwertigen Bytes
+   * @return Zahl von 0 bis 65535
+   */
+  private static int readUnsignedShort(final ByteBuffer buffer, final int index) {
+    return (buffer.get(index) & 0xFF) << 8 | buffer.get(index + 1) & 0xFF;
   }
 
   /**
    * Erstellt die Huffmann Tabellen gemäß RFC-2435.
    *
+   * @param result Ziel der Tabelle
    * @param codeLens CodeLens Tabelle
    * @param symbols Symboltabelle
    * @param tableNo Tabellennummer
    * @param tableClass Klasse
-   * @return Liste von Bytes, welche die Huffman-Tabellen repräsentieren (inkl. Marker)
    */
-  private List<Byte> createHuffmanTable(final byte[] codeLens, final byte[] symbols, final int tableNo, final int tableClass) {
-    final List<Byte> result = new ArrayList<>();
-    result.add((byte) 0xff);
-    result.add((byte) 0xc4);
-    result.add((byte) (0));
-    result.add((byte) (3 + codeLens.length + symbols.length));
-    result.add((byte) ((tableClass << 4) | tableNo));
-    for (final byte b : codeLens) {
-      result.add(b);
-    }
-    for (final byte b : symbols) {
-      result.add(b);
+  private static void createHuffmanTable(final ByteArrayOutputStream result, final byte[] codeLens, final byte[] symbols,
+      final int tableNo, final int tableClass) {
+    result.write(0xff);
+    result.write(0xc4);
+    result.write(0);
+    result.write(3 + codeLens.length + symbols.length);
+    result.write((tableClass << 4) | tableNo);
+    result.write(codeLens, 0, codeLens.length);
+    result.write(symbols, 0, symbols.length);
+  }
+
+  /** Schlüssel eines Header-Templates, die Quantisierungstabellen werden über ihren Inhalt verglichen. */
+  private static final class HeaderKey {
+    private final int width;
+    private final int height;
+    private final int ySamplingFactor;
+    private final int restartInterval;
+    private final byte[] qTables;
+    private final int hash;
+
+    HeaderKey(final int width, final int height, final int ySamplingFactor, final int restartInterval, final byte[] qTables) {
+      this.width = width;
+      this.height = height;
+      this.ySamplingFactor = ySamplingFactor;
+      this.restartInterval = restartInterval;
+      this.qTables = qTables;
+      this.hash = Objects.hash(width, height, ySamplingFactor, restartInterval, Arrays.hashCode(qTables));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof HeaderKey)) {
+        return false;
+      }
+      final HeaderKey other = (HeaderKey) o;
+      return width == other.width && height == other.height && ySamplingFactor == other.ySamplingFactor
+          && restartInterval == other.restartInterval
+          && (qTables == other.qTables || Arrays.equals(qTables, other.qTables));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
     }
-    return result;
   }
 }
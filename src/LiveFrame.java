@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Frame of a live source, packetized once for all sessions of the source: the RTP-JPEG payloads
+ * of the packets, each a RFC 2435 header and a slice of the scan data, and the FEC packets of
+ * their groups. A session sends the payloads with its own RTP header and rewrites only SSRC,
+ * sequence numbers and time stamp of the FEC packets, so an additional viewer costs little more
+ * than the system calls.
+ *
+ * <p>The FEC groups restart with every frame, the last group of a frame may be smaller. So a
+ * session can start with any frame and all packets of a group have the time stamp of the frame.
+ * The shared packets are built with time stamp 0. The frame is not modified after its creation.
+ */
+public class LiveFrame {
+  static final int FEC_PT = 127; // payload type of the FEC packets, see FecHandler
+
+  private final int number; // frame number of the source, starting with 1
+  private final long captureTime; // ms since 1970, when the frame was complete
+  private final List<ByteBuffer[]> fragments; // RFC 2435 header and scan data, position 0
+  private final FECpacket[] fecPackets; // per packet the FEC packet sent after it, or null
+
+  private LiveFrame(int number, long captureTime, List<ByteBuffer[]> fragments, int groupSize) {
+    this.number = number;
+    this.captureTime = captureTime;
+    this.fragments = fragments;
+    this.fecPackets = new FECpacket[fragments.size()];
+    // XOR of the payloads and the header fields of each group, snBase relative to the frame
+    for (int first = 0; groupSize > 0 && first < fragments.size(); first += groupSize) {
+      int count = Math.min(groupSize, fragments.size() - first);
+      FECpacket fec = new FECpacket(FEC_PT, 0, 0, groupSize, first);
+      fec.setUlpLevelHeader(0, 0, count);
+      for (int i = first; i < first + count; i++) {
+        ByteBuffer[] fragment = fragments.get(i);
+        RTPpacket rtp = new RTPpacket(RtspSession.MJPEG_TYPE, i, 0, fragment[0], fragment[1]);
+        if (i == fragments.size() - 1) rtp.setmarker(1);
+        fec.addRtp(rtp);
+      }
+      fecPackets[first + count - 1] = fec;
+    }
+  }
+
+  /**
+   * Packetizes a frame of the source according to RFC 2435 and computes its FEC packets
+   *
+   * @param number frame number of the source
+   * @param jpeg complete JPEG frame including SOI and EOI
+   * @param groupSize FEC group size, 0 for no FEC
+   * @return Frame for all sessions
+   */
+  public static LiveFrame packetize(int number, byte[] jpeg, int groupSize) {
+    long captureTime = System.currentTimeMillis();
+    JpegFrame jpegFrame = JpegFrame.getFromJpegBytes(jpeg);
+    ByteBuffer payload = ByteBuffer.wrap(jpegFrame.getAsRfc2435Bytes());
+    List<ByteBuffer[]> fragments =
+        JpegFrame.fragmentRfc2435Payload(payload, RTPpacket.MAX_PAYLOAD_SIZE);
+    return new LiveFrame(number, captureTime, fragments, groupSize);
+  }
+
+  /** @return Frame number of the source, starting with 1 */
+  public int getNumber() {
+    return number;
+  }
+
+  /** @return Time in ms since 1970, when the frame was read completely */
+  public long getCaptureTime() {
+    return captureTime;
+  }
+
+  /** @return Number of RTP packets of the frame */
+  public int getPacketCount() {
+    return fragments.size();
+  }
+
+  /**
+   * @param index number of the packet within the frame
+   * @return View of the RFC 2435 header of the packet, position 0
+   */
+  public ByteBuffer getPayloadHeader(int index) {
+    return fragments.get(index)[0].duplicate();
+  }
+
+  /**
+   * @param index number of the packet within the frame
+   * @return View of the scan data of the packet after its RFC 2435 header, position 0
+   */
+  public ByteBuffer getPayload(int index) {
+    return fragments.get(index)[1].duplicate();
+  }
+
+  /**
+   * @param index number of the packet within the frame
+   * @return FEC packet of the group which ends with the packet, null if the group continues
+   */
+  public FECpacket getFecPacket(int index) {
+    return fecPackets[index];
+  }
+}
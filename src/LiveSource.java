@@ -0,0 +1,147 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Live MJPEG source, e.g. a camera writing into a FIFO or an append-only file. One thread per
+ * source tails the input and hands every frame to all attached sessions as soon as its EOI has
+ * been read. Each frame is packetized and protected by FEC once for all sessions, see
+ * {@link LiveFrame}.
+ */
+public class LiveSource implements Runnable {
+  static final String LIVE_SUFFIX = ".live"; // append-only files, FIFOs are detected by type
+  static final int POLL_INTERVAL = 5; // ms to wait for new data at the end of the input
+
+  /** Receiver of live frames, called on the thread of the source */
+  public interface Subscriber {
+    /**
+     * @param frame packetized frame, shared by all subscribers
+     */
+    void onFrame(LiveFrame frame);
+  }
+
+  private static final Map<String, LiveSource> sources = new ConcurrentHashMap<>();
+
+  private final String file;
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+  private final Thread thread;
+  private int nrFrames; // frames read from the input
+  private volatile int fecGroupSize = 2; // FEC group size of all sessions
+
+  private LiveSource(String file) {
+    this.file = file;
+    this.thread = new Thread(this, "LiveSource " + file);
+    thread.setDaemon(true);
+  }
+
+  /**
+   * @param fileName requested video file
+   * @return True, if the file is a FIFO or an append-only file named *.live
+   */
+  public static boolean isLive(String fileName) {
+    Path path = Paths.get(fileName);
+    return fileName.endsWith(LIVE_SUFFIX)
+        || (Files.exists(path) && !Files.isRegularFile(path) && !Files.isDirectory(path));
+  }
+
+  /**
+   * Delivers the shared source for a file and starts reading on first use
+   *
+   * @param fileName FIFO or append-only file
+   * @return LiveSource
+   */
+  public static LiveSource get(String fileName) {
+    return sources.computeIfAbsent(
+        fileName,
+        name -> {
+          LiveSource source = new LiveSource(name);
+          source.thread.start();
+          return source;
+        });
+  }
+
+  public void addSubscriber(Subscriber subscriber) {
+    subscribers.add(subscriber);
+  }
+
+  public void removeSubscriber(Subscriber subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  /** @param size FEC group size of the following frames, 0 for no FEC */
+  public void setFecGroupSize(int size) {
+    fecGroupSize = size;
+  }
+
+  /** @return Number of frames read from the input */
+  public int getNrFrames() {
+    return nrFrames;
+  }
+
+  @Override
+  public void run() {
+    // opening a FIFO blocks until the writer is connected, so it is done here
+    try (TailInputStream input = new TailInputStream(file)) {
+      VideoReader reader = new VideoReader(input);
+      ByteBuffer frame;
+      while ((frame = reader.readNextFrame()) != null) {
+        nrFrames++;
+        if (subscribers.isEmpty()) continue; // not packetized for nobody
+        byte[] jpeg = new byte[frame.remaining()];
+        frame.get(jpeg);
+        LiveFrame packets;
+        try {
+          packets = LiveFrame.packetize(nrFrames, jpeg, fecGroupSize);
+        } catch (RuntimeException ex) {
+          System.out.println("Invalid live frame " + nrFrames + ": " + ex);
+          continue;
+        }
+        for (Subscriber subscriber : subscribers) {
+          try {
+            subscriber.onFrame(packets);
+          } catch (RuntimeException ex) {
+            System.out.println("Live subscriber failed: " + ex);
+          }
+        }
+      }
+    } catch (IOException ex) {
+      System.out.println("LiveSource " + file + " stopped: " + ex);
+    }
+    sources.remove(file, this);
+  }
+
+  /**
+   * Input stream which waits for new data instead of signalling the end of the file. Regular files
+   * are read from their current end, so only new frames are delivered.
+   */
+  private static class TailInputStream extends FileInputStream {
+
+    TailInputStream(String file) throws IOException {
+      super(file);
+      if (Files.isRegularFile(Paths.get(file))) {
+        getChannel().position(getChannel().size());
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        int n = super.read(b, off, len);
+        if (n > 0 || len == 0) return n;
+        try {
+          Thread.sleep(POLL_INTERVAL); // end of file or no writer connected to the FIFO
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return -1;
+        }
+      }
+    }
+  }
+}
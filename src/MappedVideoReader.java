@@ -0,0 +1,105 @@
+import static java.util.logging.Level.WARNING;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Liest ein MJPEG-Video über eine in den Speicher gemappte Datei. Die Position der Bilder stammt aus
+ * dem {@link FrameIndex}, die Bilder werden als schreibgeschützte Slices des gemappten Buffers ohne
+ * Kopie herausgegeben.
+ */
+public class MappedVideoReader implements FrameSource {
+
+  private final FileChannel channel;
+  private final MappedByteBuffer mappedBuffer;
+  private final FrameIndex frameIndex;
+  // Nummer des nächsten zu lesenden Bildes
+  private int position;
+
+  /**
+   * Mappt die Videodatei und lädt bzw. erstellt den Index der enthaltenen Bilder.
+   *
+   * @param videoFilePath Pfad für das Video
+   * @throws IOException falls das Video nicht geöffnet werden kann oder zu groß für ein Mapping ist
+   */
+  public MappedVideoReader(final String videoFilePath) throws IOException {
+    this.channel = FileChannel.open(Paths.get(videoFilePath), StandardOpenOption.READ);
+    try {
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Video ist zu groß für ein Mapping: " + videoFilePath);
+      }
+      this.mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    this.frameIndex = FrameIndex.forFile(videoFilePath);
+  }
+
+  /**
+   * Liefert das nächste Bild als schreibgeschützten Slice des gemappten Buffers.
+   *
+   * @return JPEG-Bild oder NULL, falls das Ende des Videos erreicht ist
+   */
+  @Override
+  public ByteBuffer readNextFrame() {
+    if (position >= frameIndex.getFrameCount()) {
+      return null;
+    }
+    return getFrame(position++);
+  }
+
+  /**
+   * Liefert ein beliebiges Bild als schreibgeschützten Slice des gemappten Buffers.
+   *
+   * @param frameNb Nummer des Bildes, beginnend bei 0
+   * @return JPEG-Bild inklusive SOI und EOI
+   */
+  public ByteBuffer getFrame(final int frameNb) {
+    final int offset = (int) frameIndex.getOffset(frameNb);
+    final ByteBuffer slice = mappedBuffer.duplicate();
+    slice.limit(offset + frameIndex.getLength(frameNb));
+    slice.position(offset);
+    return slice.slice().asReadOnlyBuffer();
+  }
+
+  @Override
+  public FrameIndex getFrameIndex() {
+    return frameIndex;
+  }
+
+  @Override
+  public void seek(final int frameNb) {
+    if (frameNb < 0 || frameNb > frameIndex.getFrameCount()) {
+      throw new IndexOutOfBoundsException("Bild " + frameNb + " ist nicht im Video enthalten.");
+    }
+    position = frameNb;
+  }
+
+  /** @return Nummer des nächsten zu lesenden Bildes */
+  public int getPosition() {
+    return position;
+  }
+
+  @Override
+  public int getFrameNumber() {
+    return position - 1;
+  }
+
+  /** Schließt den File Channel. Der gemappte Buffer wird vom Garbage Collector freigegeben. */
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.getGlobal()
+          .log(WARNING, "FileChannel des MappedVideoReader konnte nicht geschlossen werden.");
+    }
+  }
+}
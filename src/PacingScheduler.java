@@ -0,0 +1,263 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Media clock of the server. One thread sends the frames of all sessions at absolute deadlines,
+ * which are derived from the RTP time stamps of the frames, so the stream does not drift with
+ * the delays of single ticks. The thread parks until shortly before the next deadline and spins
+ * for the rest, which gives an accuracy well below one millisecond.
+ *
+ * <p>Between two deadlines a stream may be called again for the same frame, e.g. to send its
+ * remaining packets paced by a token bucket, see {@link Handle#resumeAfter(long)}.
+ *
+ * <p>A stream which falls behind its clock, e.g. after a prefetch underrun, catches up with at
+ * most twice the frame rate instead of sending the missed frames in a burst. After a lag of more
+ * than {@link #MAX_LAG_NANOS} the clock of the stream is restarted at the current time.
+ *
+ * <p>Besides the shared scheduler, a session may have its own scheduler on a thread of a given
+ * factory, e.g. a virtual thread. Such a scheduler does not spin, many spinning threads would
+ * occupy the processors.
+ */
+public class PacingScheduler implements Runnable {
+  // the last part of a wait is spun, parkNanos may oversleep by some 100 µs
+  static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(300);
+  static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(2); // frame was not ready
+  static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // counted as late send
+
+  private static PacingScheduler shared;
+
+  /** Stream of frames paced by the scheduler */
+  public interface Stream {
+    /**
+     * Sends the frame which is due, called on the thread of the scheduler
+     *
+     * @param handle registration of the stream, cancelled by the stream at its end
+     * @param timestamp RTP time stamp of the due frame
+     * @return RTP time stamp of the next frame, or the same time stamp to try again shortly
+     */
+    int onDeadline(Handle handle, int timestamp);
+  }
+
+  private final PriorityQueue<Handle> queue = // guarded by this
+      new PriorityQueue<>((a, b) -> Long.compare(a.deadline - b.deadline, 0));
+  private final Thread thread;
+  private final long spinNanos; // last part of a wait which is spun
+  private volatile boolean stopped;
+
+  public PacingScheduler(String name) {
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MAX_PRIORITY);
+    spinNanos = SPIN_NANOS;
+    thread.start();
+  }
+
+  /**
+   * @param name name of the thread
+   * @param factory creates the thread of the scheduler
+   * @param spinNanos last part of a wait which is spun, 0 to park only
+   */
+  public PacingScheduler(String name, ThreadFactory factory, long spinNanos) {
+    thread = factory.newThread(this);
+    thread.setName(name);
+    this.spinNanos = spinNanos;
+    thread.start();
+  }
+
+  /** @return Scheduler shared by all sessions of the server */
+  public static synchronized PacingScheduler getShared() {
+    if (shared == null) shared = new PacingScheduler("PacingScheduler");
+    return shared;
+  }
+
+  /**
+   * Starts pacing a stream, the first frame is due immediately
+   *
+   * @param stream stream to send
+   * @param clockRate RTP clock rate in Hz
+   * @param timestamp RTP time stamp of the first frame
+   * @return Handle to stop the stream
+   */
+  public Handle schedule(Stream stream, int clockRate, int timestamp) {
+    Handle handle = new Handle(stream, clockRate, timestamp, System.nanoTime());
+    enqueue(handle);
+    return handle;
+  }
+
+  private void enqueue(Handle handle) {
+    synchronized (this) {
+      queue.add(handle);
+    }
+    // the new deadline may be earlier than the awaited one, the own thread is not waiting
+    if (Thread.currentThread() != thread) LockSupport.unpark(thread);
+  }
+
+  /** Stops the thread of the scheduler, the queued streams are not called anymore */
+  public void shutdown() {
+    stopped = true;
+    LockSupport.unpark(thread);
+  }
+
+  @Override
+  public void run() {
+    while (!stopped) {
+      Handle due = null;
+      long remaining = 0; // ns until the next deadline
+      boolean idle;
+      synchronized (this) {
+        Handle next = queue.peek();
+        idle = next == null;
+        if (!idle) {
+          remaining = next.deadline - System.nanoTime();
+          if (remaining <= 0) due = queue.poll();
+        }
+      }
+      if (due != null) {
+        due.run();
+      } else if (idle) {
+        LockSupport.park(this);
+      } else if (remaining > spinNanos) {
+        LockSupport.parkNanos(this, remaining - spinNanos); // woken early by a new stream
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /** Registration of a stream with its clock */
+  public final class Handle {
+    private final Stream stream;
+    private final int clockRate;
+    private long anchor; // deadline of the anchor time stamp in ns
+    private int anchorTimestamp;
+    private int timestamp; // RTP time stamp of the next frame
+    private long deadline; // send time of the next frame in ns, fixed while queued
+    private long resumeNanos = RETRY_NANOS; // delay of the next call with the same time stamp
+    private long started; // start of the frame in ns, the first call which did not fail
+    private boolean newFrame = true; // the frame of the current time stamp is not started
+    private boolean cancelled; // guarded by this
+
+    // *** Statistics ****************************
+    private int nrSent; // deadlines served
+    private int nrLate; // frames sent more than LATE_NANOS after their deadline
+    private int nrRestarts; // clock restarts after a large lag
+    private long maxLateness; // ns
+    private long sumLateness; // ns
+
+    private Handle(Stream stream, int clockRate, int timestamp, long now) {
+      this.stream = stream;
+      this.clockRate = clockRate;
+      this.anchor = now;
+      this.anchorTimestamp = timestamp;
+      this.timestamp = timestamp;
+      this.deadline = now;
+    }
+
+    /**
+     * Stops the stream. When called from another thread, a call of the stream in progress is
+     * finished first, so the stream can be modified safely afterwards. A frame sent by several
+     * calls, see {@link #resumeAfter(long)}, may be stopped between them.
+     */
+    public synchronized void cancel() {
+      cancelled = true;
+      synchronized (PacingScheduler.this) {
+        queue.remove(this);
+      }
+    }
+
+    /**
+     * Sets the delay until the stream is called again with the same time stamp, only for the
+     * current call of {@link Stream#onDeadline}. Without it a frame is retried after 2 ms.
+     *
+     * @param nanos delay in ns
+     */
+    public void resumeAfter(long nanos) {
+      resumeNanos = nanos;
+      newFrame = false; // the frame is in sending
+    }
+
+    /** @return True, if the stream is stopped */
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** Sends the due frame and queues the next deadline */
+    private synchronized void run() {
+      if (cancelled) return;
+      long start = System.nanoTime();
+      long lateness = start - deadline;
+      nrSent++;
+      sumLateness += lateness;
+      maxLateness = Math.max(maxLateness, lateness);
+      if (lateness > LATE_NANOS) nrLate++;
+
+      if (newFrame) started = start;
+      newFrame = true; // unless resumed by the stream
+      int due = timestamp;
+      try {
+        timestamp = stream.onDeadline(this, due);
+      } catch (RuntimeException ex) {
+        System.out.println("Stream stopped: " + ex);
+        ex.printStackTrace();
+        cancelled = true;
+      }
+      if (cancelled) return; // stopped by the stream itself
+
+      long now = System.nanoTime();
+      if (timestamp == due) {
+        deadline = now + resumeNanos; // e.g. the frame is still in preparation
+        resumeNanos = RETRY_NANOS;
+      } else {
+        resumeNanos = RETRY_NANOS;
+        newFrame = true;
+        // difference of the time stamps, correct across the wrap-around of 32 bits
+        long ideal = anchor + toNanos(timestamp - anchorTimestamp);
+        long interval = toNanos(timestamp - due);
+        if (now - ideal > MAX_LAG_NANOS) {
+          nrRestarts++;
+          anchor = now;
+          anchorTimestamp = timestamp;
+          ideal = now;
+        }
+        // behind the clock: frames start with at most twice the frame rate until the deadlines
+        // are reached again
+        deadline = Math.max(ideal, started + interval / 2);
+      }
+      enqueue(this);
+    }
+
+    private long toNanos(int ticks) {
+      return ticks * TimeUnit.SECONDS.toNanos(1) / clockRate;
+    }
+
+    // *************** Statistics ****************************************************************
+
+    /** @return Number of frames sent */
+    public synchronized int getNrSent() {
+      return nrSent;
+    }
+
+    /** @return Number of frames sent more than 1 ms after their deadline */
+    public synchronized int getNrLate() {
+      return nrLate;
+    }
+
+    /** @return Number of clock restarts after a lag of more than one second */
+    public synchronized int getNrRestarts() {
+      return nrRestarts;
+    }
+
+    /** @return Highest delay of a send after its deadline in µs */
+    public synchronized long getMaxLateness() {
+      return TimeUnit.NANOSECONDS.toMicros(maxLateness);
+    }
+
+    /** @return Average delay of the sends after their deadline in µs */
+    public synchronized long getAvgLateness() {
+      return nrSent == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sumLateness / nrSent);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reference-counted packet buffers for the send and receive paths. A buffer is acquired
+ * with a count of one; every additional holder, e.g. the jitter buffer and the consumer of a
+ * frame, calls {@link Buffer#retain()} and each holder calls {@link Buffer#release()} when done.
+ * At zero the buffer goes back to the pool, so the packets of a steady stream reuse the same
+ * arrays.
+ *
+ * <p>With {@code -Dpacketpool.debug=true} the pool records where each outstanding buffer was
+ * acquired, {@link #reportLeaks()} lists the buffers which were never released.
+ */
+public class PacketBufferPool {
+  // MTU-sized packets including RTP and FEC headers, see RTPpacket.MAX_PAYLOAD_SIZE
+  static final int DEFAULT_BUFFER_SIZE = 2048;
+  static final int DEFAULT_MAX_IDLE = 256; // buffers kept in the pool, the rest is collected
+  static final boolean DEBUG = Boolean.getBoolean("packetpool.debug");
+
+  private final int bufferSize;
+  private final int maxIdle;
+  private final ArrayDeque<Buffer> idle = new ArrayDeque<>(); // guarded by itself
+  // debug mode: acquired buffers and the stack trace of their acquisition
+  private final Map<Buffer, Throwable> outstanding =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  // *** Statistics ****************************
+  private final AtomicInteger nrAllocated = new AtomicInteger(); // buffers created
+  private final AtomicInteger nrInUse = new AtomicInteger(); // buffers acquired, not released
+
+  /**
+   * @param bufferSize capacity of each buffer in bytes
+   * @param maxIdle maximum number of free buffers kept for reuse
+   */
+  public PacketBufferPool(int bufferSize, int maxIdle) {
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  /** Pool with MTU-sized buffers */
+  public PacketBufferPool() {
+    this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+  }
+
+  /**
+   * Takes a free buffer or allocates a new one, if the pool is empty
+   *
+   * @return buffer with a reference count of one
+   */
+  public Buffer acquire() {
+    Buffer buffer;
+    synchronized (idle) {
+      buffer = idle.poll();
+    }
+    if (buffer == null) {
+      buffer = new Buffer(new byte[bufferSize]);
+      nrAllocated.incrementAndGet();
+    }
+    buffer.refCnt.set(1);
+    nrInUse.incrementAndGet();
+    if (DEBUG) outstanding.put(buffer, new Throwable("Packet buffer acquired"));
+    return buffer;
+  }
+
+  private void recycle(Buffer buffer) {
+    nrInUse.decrementAndGet();
+    if (DEBUG) outstanding.remove(buffer);
+    synchronized (idle) {
+      if (idle.size() < maxIdle) idle.push(buffer); // LIFO, the last used array is still cached
+    }
+  }
+
+  /**
+   * Prints the acquisition of all buffers which are not released, only in debug mode. Should be
+   * called when no packets are expected to be held, e.g. at the end of a session.
+   *
+   * @return Number of outstanding buffers
+   */
+  public int reportLeaks() {
+    int inUse = nrInUse.get();
+    if (DEBUG) {
+      synchronized (outstanding) {
+        for (Throwable trace : outstanding.values()) {
+          System.out.println("Leaked packet buffer:");
+          trace.printStackTrace(System.out);
+        }
+      }
+    } else if (inUse > 0) {
+      System.out.println(
+          inUse + " packet buffers not released, -Dpacketpool.debug=true for details");
+    }
+    return inUse;
+  }
+
+  // *************** Statistics ******************************************************************
+
+  /** @return Number of buffers created since the start */
+  public int getNrAllocated() {
+    return nrAllocated.get();
+  }
+
+  /** @return Number of buffers currently held */
+  public int getNrInUse() {
+    return nrInUse.get();
+  }
+
+  /** @return Capacity of the buffers in bytes */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Reference-counted byte array of the pool */
+  public final class Buffer {
+    private final byte[] array;
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    private Buffer(byte[] array) {
+      this.array = array;
+    }
+
+    /** @return Backing array, e.g. for a DatagramPacket */
+    public byte[] array() {
+      return array;
+    }
+
+    /**
+     * @param length number of valid bytes
+     * @return View of the first bytes of the buffer
+     */
+    public ByteBuffer wrap(int length) {
+      return ByteBuffer.wrap(array, 0, length);
+    }
+
+    /** Adds a holder of the buffer */
+    public void retain() {
+      if (refCnt.getAndIncrement() <= 0) {
+        throw new IllegalStateException("Packet buffer retained after release");
+      }
+    }
+
+    /** Removes a holder, the last one returns the buffer to the pool */
+    public void release() {
+      int count = refCnt.decrementAndGet();
+      if (count == 0) {
+        recycle(this);
+      } else if (count < 0) {
+        throw new IllegalStateException("Packet buffer released too often");
+      }
+    }
+  }
+}
@@ -1,3 +1,15 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flyweight view of a RTP packet. Header and payload are regions of ByteBuffers (heap or direct)
+ * and the header fields are decoded on access, so neither the sender nor the receiver copies the
+ * payload. A received packet is a view of the datagram buffer, which must not be reused while the
+ * packet is in use.
+ *
+ * <p>Packets in a buffer of the {@link PacketBufferPool} share its reference count: every holder
+ * besides the creator calls {@link #retain()}, and every holder calls {@link #release()}.
+ */
 public class RTPpacket {
 
   /*
@@ -13,150 +25,295 @@ public class RTPpacket {
    |            contributing source (CSRC) identifiers             |
    |                             ....                              |
    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |      defined by profile       |           length              |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |                  header extension (X = 1)                     |
+   |                             ....                              |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
    */
 
 
-  // size of the RTP header:
+  // size of the fixed RTP header, followed by the CSRC list and the header extension
   static int HEADER_SIZE = 12;
-
-  // Fields that compose the RTP header
-  public int Version;
-  public int Padding;
-  public int Extension;
-  public int CC;
-  public int Marker;
-  public int PayloadType;
-  public int SequenceNumber;
-  public int TimeStamp;
-  public int Ssrc;
-
-  // Bitstream of the RTP header
-  public byte[] header;
-  // size of the RTP payload
-  public int payload_size;
-  // Bitstream of the RTP payload
-  public byte[] payload;
+  // maximum payload, so that media and FEC packets fit into one Ethernet frame
+  // 1500 - IP (20) - UDP (8) - RTP (12) - FEC header (10) - long ULP header (8)
+  // media packets have 18 bytes left for CSRCs and header extensions
+  static final int MAX_PAYLOAD_SIZE = 1442;
+
+  // Bitstream of the RTP header, position 0 to limit
+  protected ByteBuffer header;
+  // Bitstream of the RTP payload, position 0 to limit
+  protected ByteBuffer payload;
+  // header sent before the payload bitstream, e.g. of a RFC 2435 fragment, empty if received
+  private ByteBuffer payloadHeader = ByteBuffer.allocate(0);
+  // pooled buffer of header and payload, null if the packet is not pooled
+  private PacketBufferPool.Buffer buffer;
+  // padding bytes after the payload (P = 1), the last one holds their number
+  private int padding;
 
   // --------------------------
   // Constructor of an RTPpacket object from header fields and payload bitstream
+  // the packet is a view of the array, it is not copied
   // --------------------------
   public RTPpacket(int PType, int Framenb, int Time, byte[] data, int data_length) {
+    this(PType, Framenb, Time, ByteBuffer.wrap(data, 0, data_length));
+  }
 
-    // fill by default header fields:
-    Version = 2;
-    Padding = 0;
-    Extension = 0;
-    CC = 0;
-    Marker = 0;
-    Ssrc = 0;
+  // --------------------------
+  // Constructor of an RTPpacket object from header fields and a payload buffer
+  // the remaining bytes of the buffer are the payload, its position is not changed
+  // --------------------------
+  public RTPpacket(int PType, int Framenb, int Time, ByteBuffer data) {
+    // build the header bistream: Version 2, no padding, extension and CSRC, SSRC 0, see setssrc
+    header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(0, (byte) (2 << 6));
+    header.put(1, (byte) (PType & 0x7F));
+    header.putShort(2, (short) Framenb);
+    header.putInt(4, Time);
+
+    // the payload is a view of the data
+    payload = data.slice();
+  }
 
-    // fill changing header fields:
-    SequenceNumber = Framenb;
-    TimeStamp = Time;
-    PayloadType = PType;
+  // --------------------------
+  // Constructor of an RTPpacket object with a payload of a payload header and the data
+  // both are views, they are not copied
+  // --------------------------
+  public RTPpacket(int PType, int Framenb, int Time, ByteBuffer payloadHeader, ByteBuffer data) {
+    this(PType, Framenb, Time, data);
+    this.payloadHeader = payloadHeader.slice();
+  }
 
-    // build the header bistream:
-    // --------------------------
-    header = new byte[HEADER_SIZE];
-    setRtpHeader();
+  // --------------------------
+  // Constructor of an RTPpacket object from the packet bistream
+  // --------------------------
+  public RTPpacket(byte[] packet, int packet_size) {
+    this(ByteBuffer.wrap(packet, 0, packet_size));
+  }
 
-    // fill the payload bitstream:
-    // --------------------------
-    payload_size = data_length;
-    payload = new byte[data_length];
+  // --------------------------
+  // Constructor of an RTPpacket view of a received packet, from position to limit of the buffer
+  // --------------------------
+  public RTPpacket(ByteBuffer packet) {
+    ByteBuffer bits = packet.slice();
+    int size = bits.limit();
+    // the header includes the CSRC list and the extension, truncated packets are cut at the end
+    int headerSize = Math.min(HEADER_SIZE, size);
+    if (headerSize == HEADER_SIZE) {
+      headerSize += 4 * (bits.get(0) & 0xF); // CSRC count
+      if ((bits.get(0) & 0x10) != 0 && headerSize + 4 <= size) {
+        headerSize += 4 + 4 * (bits.getShort(headerSize + 2) & 0xFFFF); // extension length
+      }
+      headerSize = Math.min(headerSize, size);
+      if ((bits.get(0) & 0x20) != 0 && size > headerSize) {
+        padding = Math.min(bits.get(size - 1) & 0xFF, size - headerSize);
+      }
+    }
+    header = bits.duplicate().limit(headerSize).slice();
+    payload = bits.position(headerSize).limit(size - padding).slice();
+  }
 
-    // fill payload array of byte from data (given in parameter of the constructor)
-    System.arraycopy(data, 0, payload, 0, data_length);
+  // --------------------------
+  // Constructor of an RTPpacket view of a received packet in a pooled buffer
+  // the packet takes over the reference of the caller
+  // --------------------------
+  public RTPpacket(PacketBufferPool.Buffer buffer, int packet_size) {
+    this(buffer.wrap(packet_size));
+    this.buffer = buffer;
+  }
 
-    // ! Do not forget to uncomment method printheader() below, if desired !
+  // --------------------------
+  // Constructor sharing the views of another packet, e.g. to interpret it as FEC packet
+  // the reference to a pooled buffer is taken over
+  // --------------------------
+  protected RTPpacket(RTPpacket rtp) {
+    header = rtp.header;
+    payload = rtp.payload;
+    payloadHeader = rtp.payloadHeader;
+    buffer = rtp.buffer;
+    padding = rtp.padding;
   }
 
-  public String toBitString(byte b){
-    return String.format("%8s", Integer.toBinaryString(header[0] & 0xFF)).replace(' ', '0');
+  // --------------------------
+  // Constructor of a packet with the header in a pooled buffer and the payload elsewhere
+  // --------------------------
+  private RTPpacket(PacketBufferPool.Buffer buffer, ByteBuffer header, ByteBuffer payload) {
+    this.buffer = buffer;
+    this.header = header;
+    this.payload = payload;
   }
 
-  public void setRtpHeader() {
-    //TASK_F fill the header array of byte with RTP header fields
-    header[0] |= (byte)((Version & 0x3) << 6);
-    header[0] |= (byte)((Padding & 0x1) << 5);
-    header[0] |= (byte)((Extension & 0x1) << 4);
-    header[0] |= (byte)(CC & 0x7);
-    header[1] |= (byte)((Marker & 0x1)<<7);
-    header[1] |= (byte)(PayloadType & 0x7f);
-    header[2] = (byte)(SequenceNumber >> 8);
-    header[3] = (byte)(SequenceNumber & 0xff);
-    header[4] = (byte)(TimeStamp >> 24);
-    header[5] = (byte)((TimeStamp & 0xff0000) >> 16);
-    header[6] = (byte)((TimeStamp & 0xff00) >> 8);
-    header[7] = (byte)(TimeStamp & 0xff);
-    header[8] = (byte)(Ssrc >> 24);
-    header[9] = (byte)((Ssrc & 0xff0000) >> 16);
-    header[10] = (byte)((Ssrc & 0xff00) >> 8);
-    header[11] = (byte)(Ssrc & 0xff);
+  // --------------------------
+  // build: writes header and payload into a pooled buffer, e.g. to send the packet
+  // the packet takes over the reference of the caller
+  // --------------------------
+  public static RTPpacket build(
+      PacketBufferPool.Buffer buffer, int PType, int Framenb, int Time, ByteBuffer data) {
+    return build(buffer, PType, Framenb, Time, 0, null, null, data);
   }
 
+  // --------------------------
+  // build: writes a packet with SSRC, CSRC list and header extension into a pooled buffer
+  // csrc and extension may be null or empty, the packet takes over the reference of the caller
+  // --------------------------
+  public static RTPpacket build(
+      PacketBufferPool.Buffer buffer, int PType, int Framenb, int Time, int ssrc, int[] csrc,
+      RtpHeaderExtension extension, ByteBuffer data) {
+    int headerSize = getHeaderSize(csrc, extension);
+    ByteBuffer bits = buffer.wrap(headerSize + data.remaining());
+    writeHeader(bits, PType, Framenb, Time, ssrc, csrc, extension);
+    bits.put(headerSize, data, data.position(), data.remaining());
+    return new RTPpacket(buffer, bits.limit());
+  }
 
   // --------------------------
-  // Constructor of an RTPpacket object from the packet bistream
+  // buildHeader: writes only the header into a pooled buffer, the payload is a view of data
+  // the payload is not copied, the packet is sent with a gathering write of getBuffers()
   // --------------------------
-  public RTPpacket(byte[] packet, int packet_size) {
-    // fill default fields:
-    Version = 2;
-    Padding = 0;
-    Extension = 0;
-    CC = 0;
-    Marker = 0;
-    Ssrc = 0;
-
-    // check if total packet size is lower than the header size
-    if (packet_size >= HEADER_SIZE) {
-      // get the header bitsream:
-      header = new byte[HEADER_SIZE];
-      System.arraycopy(packet, 0, header, 0, HEADER_SIZE);
-
-      // get the payload bitstream:
-      payload_size = packet_size - HEADER_SIZE;
-      payload = new byte[payload_size];
-      System.arraycopy(packet, HEADER_SIZE, payload, 0, packet_size - HEADER_SIZE);
-
-      // interpret the changing fields of the header:
-      PayloadType = header[1] & 127;
-      SequenceNumber = unsigned_int(header[3]) + 256 * unsigned_int(header[2]);
-      TimeStamp =
-          unsigned_int(header[7])
-              + 256 * unsigned_int(header[6])
-              + 65536 * unsigned_int(header[5])
-              + 16777216 * unsigned_int(header[4]);
+  public static RTPpacket buildHeader(
+      PacketBufferPool.Buffer buffer, int PType, int Framenb, int Time, int ssrc, int[] csrc,
+      RtpHeaderExtension extension, ByteBuffer data) {
+    ByteBuffer bits = buffer.wrap(getHeaderSize(csrc, extension));
+    writeHeader(bits, PType, Framenb, Time, ssrc, csrc, extension);
+    return new RTPpacket(buffer, bits.slice(), data.slice());
+  }
+
+  // --------------------------
+  // buildHeader: as above, the payload consists of a payload header and the data
+  // e.g. the RFC 2435 header of a fragment and a slice of the whole frame, neither is copied
+  // --------------------------
+  public static RTPpacket buildHeader(
+      PacketBufferPool.Buffer buffer, int PType, int Framenb, int Time, int ssrc, int[] csrc,
+      RtpHeaderExtension extension, ByteBuffer payloadHeader, ByteBuffer data) {
+    RTPpacket packet = buildHeader(buffer, PType, Framenb, Time, ssrc, csrc, extension, data);
+    packet.payloadHeader = payloadHeader.slice();
+    return packet;
+  }
+
+  private static int getHeaderSize(int[] csrc, RtpHeaderExtension extension) {
+    int cc = csrc != null ? csrc.length : 0;
+    if (cc > 15) throw new IllegalArgumentException("More than 15 CSRCs: " + cc);
+    return HEADER_SIZE + 4 * cc + (extension != null ? extension.getLength() : 0);
+  }
+
+  private static void writeHeader(
+      ByteBuffer bits, int PType, int Framenb, int Time, int ssrc, int[] csrc,
+      RtpHeaderExtension extension) {
+    int cc = csrc != null ? csrc.length : 0;
+    int extensionSize = extension != null ? extension.getLength() : 0;
+    // Version 2, no padding, X and CC
+    bits.put(0, (byte) (2 << 6 | (extensionSize > 0 ? 1 << 4 : 0) | cc));
+    bits.put(1, (byte) (PType & 0x7F));
+    bits.putShort(2, (short) Framenb);
+    bits.putInt(4, Time);
+    bits.putInt(8, ssrc);
+    for (int i = 0; i < cc; i++) {
+      bits.putInt(HEADER_SIZE + 4 * i, csrc[i]);
     }
+    if (extensionSize > 0) extension.write(bits, HEADER_SIZE + 4 * cc);
+  }
+
+  // --------------------------
+  // retain: adds a holder of a pooled packet
+  // --------------------------
+  public RTPpacket retain() {
+    if (buffer != null) buffer.retain();
+    return this;
+  }
+
+  // --------------------------
+  // release: the last holder returns a pooled packet to its pool
+  // --------------------------
+  public void release() {
+    if (buffer != null) buffer.release();
+  }
+
+  // --------------------------
+  // getbuffer: array of a pooled packet starting with the header, null if not pooled
+  // contains only the header, if the packet is built with buildHeader
+  // --------------------------
+  public byte[] getbuffer() {
+    return buffer != null ? buffer.array() : null;
+  }
+
+  public String toBitString(byte b){
+    return String.format("%8s", Integer.toBinaryString(header.get(0) & 0xFF)).replace(' ', '0');
+  }
+
+  // --------------------------
+  // setmarker: 1 for the last packet of a frame
+  // --------------------------
+  public void setmarker(int marker) {
+    header.put(1, (byte) ((header.get(1) & 0x7F) | (marker & 0x1) << 7));
   }
 
+  // --------------------------
+  // settimestamp
+  // --------------------------
+  public void settimestamp(int timestamp) {
+    header.putInt(4, timestamp);
+  }
+
+  // --------------------------
+  // setssrc: synchronization source, random per session
+  // --------------------------
+  public void setssrc(int ssrc) {
+    header.putInt(8, ssrc);
+  }
+
+
   // --------------------------
   // getpayload: return the payload bistream of the RTPpacket and its size
   // --------------------------
   public int getpayload(byte[] data) {
-    System.arraycopy(payload, 0, data, 0, payload_size);
-    return (payload_size);
+    int offset = payloadHeader.limit();
+    payloadHeader.get(0, data, 0, offset);
+    payload.get(0, data, offset, payload.limit());
+    return getpayload_length();
   }
 
   public byte[] getpayload() {
-    byte[] data = new byte[payload_size];
-    System.arraycopy(payload, 0, data, 0, payload_size);
+    byte[] data = new byte[getpayload_length()];
+    getpayload(data);
     return data;
   }
 
+  // --------------------------
+  // getPayloadBuffer: view of the payload without copy, position 0
+  // a payload with a separate payload header is joined into a new buffer
+  // --------------------------
+  public ByteBuffer getPayloadBuffer() {
+    if (payloadHeader.limit() == 0) return payload.duplicate();
+    return ByteBuffer.wrap(getpayload());
+  }
+
+  // --------------------------
+  // getPayloadBuffers: views of payload header and payload without copy, position 0
+  // --------------------------
+  public ByteBuffer[] getPayloadBuffers() {
+    return new ByteBuffer[] {payloadHeader.duplicate(), payload.duplicate()};
+  }
+
+  // --------------------------
+  // getHeaderBuffer: view of the header without copy, position 0
+  // --------------------------
+  public ByteBuffer getHeaderBuffer() {
+    return header.duplicate();
+  }
+
 
   // --------------------------
   // getpayload_length: return the length of the payload
   // --------------------------
   public int getpayload_length() {
-    return (payload_size);
+    return (payloadHeader.limit() + payload.limit());
   }
 
   // --------------------------
   // getlength: return the total length of the RTP packet
   // --------------------------
   public int getlength() {
-    return (payload_size + HEADER_SIZE);
+    return (header.limit() + getpayload_length() + padding);
   }
 
   // --------------------------
@@ -164,23 +321,41 @@ public class RTPpacket {
   // --------------------------
   public int getpacket(byte[] packet) {
     // construct the packet = header + payload
-    System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
-    System.arraycopy(payload, 0, packet, HEADER_SIZE, payload_size);
+    header.get(0, packet, 0, header.limit());
+    payloadHeader.get(0, packet, header.limit(), payloadHeader.limit());
+    payload.get(0, packet, header.limit() + payloadHeader.limit(), payload.limit());
+    if (padding > 0) {
+      int end = getlength();
+      Arrays.fill(packet, end - padding, end - 1, (byte) 0);
+      packet[end - 1] = (byte) padding;
+    }
 
     // return total size of the packet
-    return (payload_size + HEADER_SIZE);
+    return getlength();
   }
 
   public byte[] getpacket() {
-    byte[] packet = new byte[payload_size + HEADER_SIZE];
-    // construct the packet = header + payload
-    System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
-    System.arraycopy(payload, 0, packet, HEADER_SIZE, payload_size);
-
-    // return packet
+    byte[] packet = new byte[getlength()];
+    getpacket(packet);
     return packet;
   }
 
+  // --------------------------
+  // getBuffers: views of header, payload and padding for a gathering write, without copy
+  // --------------------------
+  public ByteBuffer[] getBuffers() {
+    if (padding == 0) {
+      return payloadHeader.limit() == 0
+          ? new ByteBuffer[] {header.duplicate(), payload.duplicate()}
+          : new ByteBuffer[] {header.duplicate(), payloadHeader.duplicate(), payload.duplicate()};
+    }
+    ByteBuffer pad = ByteBuffer.allocate(padding);
+    pad.put(padding - 1, (byte) padding);
+    return new ByteBuffer[] {
+      header.duplicate(), payloadHeader.duplicate(), payload.duplicate(), pad
+    };
+  }
+
 
 
 
@@ -189,21 +364,79 @@ public class RTPpacket {
   // --------------------------
 
   public int gettimestamp() {
-    return (TimeStamp);
+    return header.getInt(4);
+  }
+
+  // --------------------------
+  // getmarker: 1 for the last packet of a frame
+  // --------------------------
+  public int getmarker() {
+    return (header.get(1) >> 7) & 1;
   }
 
   // --------------------------
   // getsequencenumber
   // --------------------------
   public int getsequencenumber() {
-    return (SequenceNumber);
+    return header.getShort(2) & 0xFFFF;
   }
 
   // --------------------------
   // getpayloadtype
   // --------------------------
   public int getpayloadtype() {
-    return (PayloadType);
+    return header.get(1) & 127;
+  }
+
+  // --------------------------
+  // getpadding, getextension, getcc: flags of the first header byte
+  // --------------------------
+  public int getpadding() {
+    return (header.get(0) >> 5) & 1;
+  }
+
+  public int getextension() {
+    return (header.get(0) >> 4) & 1;
+  }
+
+  public int getcc() {
+    return header.get(0) & 0xF;
+  }
+
+  // --------------------------
+  // getssrc: synchronization source
+  // --------------------------
+  public int getssrc() {
+    return header.limit() >= HEADER_SIZE ? header.getInt(8) : 0;
+  }
+
+  // --------------------------
+  // getcsrc: contributing sources, e.g. the sources of a mixer
+  // --------------------------
+  public int[] getcsrc() {
+    int cc = Math.min(getcc(), Math.max(0, header.limit() - HEADER_SIZE) / 4);
+    int[] csrc = new int[cc];
+    for (int i = 0; i < cc; i++) {
+      csrc[i] = header.getInt(HEADER_SIZE + 4 * i);
+    }
+    return csrc;
+  }
+
+  // --------------------------
+  // getHeaderExtension: view of the extension including profile and length, null if X = 0
+  // --------------------------
+  public ByteBuffer getHeaderExtension() {
+    int offset = HEADER_SIZE + 4 * getcc();
+    if (getextension() == 0 || offset + 4 > header.limit()) return null;
+    return header.slice(offset, header.limit() - offset);
+  }
+
+  // --------------------------
+  // getHeaderExtension: value of an RFC 8285 element, null if it is not present
+  // --------------------------
+  public ByteBuffer getHeaderExtension(int id) {
+    ByteBuffer extension = getHeaderExtension();
+    return extension != null ? RtpHeaderExtension.find(extension, id) : null;
   }
 
 
@@ -223,16 +456,20 @@ public class RTPpacket {
   }
 
 
-  void printheader(int size, byte[] data) {
+  void printheader(int size, ByteBuffer data) {
     for (int i = 0; i < size; i++) {
       for (int j = 7; j >= 0; j--)
-        if (((1 << j) & data[i]) != 0) System.out.print("1");
+        if (((1 << j) & data.get(i)) != 0) System.out.print("1");
         else System.out.print("0");
       System.out.print(" ");
     }
     System.out.println();
   }
 
+  void printheader(int size, byte[] data) {
+    printheader(size, ByteBuffer.wrap(data));
+  }
+
 
   // return the unsigned value of 8-bit integer nb
   static int unsigned_int(int nb) {
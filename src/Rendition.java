@@ -0,0 +1,186 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * One rung of the quality ladder of the server. A rendition other than {@link #FULL} re-encodes
+ * every frame with a reduced resolution or JPEG quality, so a session on a constrained link gets
+ * a smaller bitstream instead of losing packets. The frames of a rendition are cached under their
+ * own key, see {@link #getCacheKey(String)}.
+ */
+public final class Rendition {
+  static final Rendition FULL = new Rendition("full", 1, 0f); // original bitstream
+  static final Rendition LOW = new Rendition("low", 1, 0.3f); // full resolution, lower quality
+  static final Rendition HALF = new Rendition("half", 2, 0.75f); // half width and height
+  /** Renditions from the highest to the lowest typical bitrate */
+  static final List<Rendition> LADDER = List.of(FULL, LOW, HALF);
+
+  // shared by all sessions, the transcoding is CPU bound
+  private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+  private static final int MIN_SPLIT = 2; // frames per task, below the batch is not split
+
+  private final String name;
+  private final int divisor; // width and height are divided by this value
+  private final float quality; // JPEG quality 0..1, 0 keeps the original bitstream
+
+  private Rendition(String name, int divisor, float quality) {
+    this.name = name;
+    this.divisor = divisor;
+    this.quality = quality;
+  }
+
+  /**
+   * @param name name of the rendition, e.g. from the request URL
+   * @return Rendition or null, if the name is unknown
+   */
+  public static Rendition forName(String name) {
+    for (Rendition rendition : LADDER) {
+      if (rendition.name.equalsIgnoreCase(name)) return rendition;
+    }
+    return null;
+  }
+
+  /**
+   * Selects the best rendition for the bandwidth of a client. The bitrate of each rung is
+   * estimated by transcoding a sample frame.
+   *
+   * @param bandwidth available bandwidth in bit/s (RTSP Bandwidth header)
+   * @param sample typical JPEG frame of the video
+   * @param framePeriod frame period in ms
+   * @return highest rendition within the bandwidth, or the lowest rendition
+   */
+  public static Rendition forBandwidth(long bandwidth, byte[] sample, int framePeriod) {
+    for (Rendition rendition : LADDER) {
+      int size = rendition.isOriginal() ? sample.length : rendition.transcode(sample).length;
+      long bitrate = size * 8L * 1000 / framePeriod;
+      if (bitrate <= bandwidth) return rendition;
+    }
+    return LADDER.get(LADDER.size() - 1);
+  }
+
+  /** @return Names of all renditions of the ladder, separated by commas */
+  public static String getNames() {
+    StringJoiner names = new StringJoiner(",");
+    for (Rendition rendition : LADDER) {
+      names.add(rendition.name);
+    }
+    return names.toString();
+  }
+
+  /** @return Name of the rendition */
+  public String getName() {
+    return name;
+  }
+
+  /** @return True, if the frames are sent as they are stored */
+  public boolean isOriginal() {
+    return divisor == 1 && quality == 0f;
+  }
+
+  /**
+   * @param file video file
+   * @return Key of the frames of this rendition in the FrameCache
+   */
+  public String getCacheKey(String file) {
+    return isOriginal() ? file : file + "#" + name;
+  }
+
+  /**
+   * Re-encodes a JPEG frame. The size is rounded down to a multiple of 8, because RFC 2435
+   * transmits width and height in blocks of 8 pixels.
+   *
+   * @param jpeg original JPEG frame
+   * @return JPEG frame of this rendition
+   */
+  public byte[] transcode(byte[] jpeg) {
+    try {
+      BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+      if (image == null) throw new IOException("No JPEG image");
+      int width = Math.max(8, image.getWidth() / divisor & ~7);
+      int height = Math.max(8, image.getHeight() / divisor & ~7);
+      BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+      Graphics2D g = scaled.createGraphics();
+      g.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(image, 0, 0, width, height, null);
+      g.dispose();
+
+      ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality > 0f ? quality : 0.75f);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+      try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+        writer.setOutput(ios);
+        writer.write(null, new IIOImage(scaled, null, null), param);
+      } finally {
+        writer.dispose();
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Transcodes a batch of frames in parallel on the fork-join pool and packetizes them
+   *
+   * @param jpegs original JPEG frames
+   * @return RTP-JPEG payloads (RFC 2435) in the order of the frames
+   */
+  public byte[][] transcodeAll(byte[][] jpegs) {
+    byte[][] payloads = new byte[jpegs.length][];
+    POOL.invoke(new TranscodeTask(jpegs, payloads, 0, jpegs.length));
+    return payloads;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /** Splits a batch of frames until each task transcodes only a few frames */
+  @SuppressWarnings("serial") // fork-join tasks are never serialized
+  private final class TranscodeTask extends RecursiveAction {
+    private final byte[][] jpegs;
+    private final byte[][] payloads;
+    private final int from;
+    private final int to;
+
+    TranscodeTask(byte[][] jpegs, byte[][] payloads, int from, int to) {
+      this.jpegs = jpegs;
+      this.payloads = payloads;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_SPLIT) {
+        for (int i = from; i < to; i++) {
+          ByteBuffer jpeg = ByteBuffer.wrap(transcode(jpegs[i]));
+          payloads[i] = JpegFrame.getFromJpegBuffer(jpeg).getAsRfc2435Bytes();
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new TranscodeTask(jpegs, payloads, from, middle),
+          new TranscodeTask(jpegs, payloads, middle, to));
+    }
+  }
+}
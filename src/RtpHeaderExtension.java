@@ -0,0 +1,181 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Header extension elements of RFC 8285. Elements are collected with {@link #put(int, long, int)}
+ * and written in the one-byte form, if all IDs and lengths fit into it, otherwise in the two-byte
+ * form. The sender reuses one object for all packets of a frame.
+ *
+ * <p>The server sends the capture time of the frame (abs-capture-time, NTP format) and the frame
+ * number with every packet, the IDs are announced with a=extmap in the DESCRIBE response.
+ */
+public class RtpHeaderExtension {
+  static final int ONE_BYTE_PROFILE = 0xBEDE;
+  static final int TWO_BYTE_PROFILE = 0x1000; // upper 12 bits, the lower 4 are application bits
+
+  static final int CAPTURE_TIME_ID = 1;
+  static final String CAPTURE_TIME_URI =
+      "http://www.webrtc.org/experiments/rtp-hdrext/abs-capture-time";
+  static final int FRAME_ID_ID = 2;
+  static final String FRAME_ID_URI = "urn:x-frame-id"; // 16 bit frame number, wraps around
+  static final int FRAME_ID_LENGTH = 2;
+
+  private static final int MAX_ELEMENTS = 16;
+  private static final long NTP_OFFSET = 2208988800L; // seconds from 1900 to 1970
+
+  private final int[] ids = new int[MAX_ELEMENTS];
+  private final int[] lengths = new int[MAX_ELEMENTS];
+  private final ByteBuffer data = ByteBuffer.allocate(MAX_ELEMENTS * 8); // values of the elements
+  private int count;
+
+  /** Removes all elements, e.g. for the next frame */
+  public void clear() {
+    count = 0;
+    data.clear();
+  }
+
+  /** @return True, if no element is set */
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Adds an element with a big-endian integer value
+   *
+   * @param id ID of the element, 1 to 255
+   * @param value value, the lower bytes are written
+   * @param length number of bytes, 0 to 8
+   */
+  public void put(int id, long value, int length) {
+    if (id < 1 || id > 255 || length < 0 || length > 8) {
+      throw new IllegalArgumentException("Invalid header extension element: " + id);
+    }
+    if (count == MAX_ELEMENTS) throw new IllegalStateException("Too many header extensions");
+    ids[count] = id;
+    lengths[count] = length;
+    for (int i = length - 1; i >= 0; i--) {
+      data.put((byte) (value >>> (8 * i)));
+    }
+    count++;
+  }
+
+  /**
+   * @return True, if all elements fit into the one-byte form: IDs 1 to 14, 1 to 16 bytes
+   */
+  private boolean isOneByte() {
+    for (int i = 0; i < count; i++) {
+      if (ids[i] > 14 || lengths[i] < 1 || lengths[i] > 16) return false;
+    }
+    return true;
+  }
+
+  /** @return Size of the extension in the RTP header including its own header, 0 if empty */
+  public int getLength() {
+    if (count == 0) return 0;
+    int elementHeader = isOneByte() ? 1 : 2;
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      length += elementHeader + lengths[i];
+    }
+    return 4 + (length + 3 & ~3); // padded to 32 bit words
+  }
+
+  /**
+   * Writes the extension including its header (profile and length in words)
+   *
+   * @param bits destination, e.g. the RTP header
+   * @param offset position of the extension in bits
+   * @return Number of written bytes
+   */
+  public int write(ByteBuffer bits, int offset) {
+    int length = getLength();
+    if (length == 0) return 0;
+    boolean oneByte = isOneByte();
+    bits.putShort(offset, (short) (oneByte ? ONE_BYTE_PROFILE : TWO_BYTE_PROFILE));
+    bits.putShort(offset + 2, (short) (length / 4 - 1));
+    int pos = offset + 4;
+    int value = 0;
+    for (int i = 0; i < count; i++) {
+      if (oneByte) {
+        bits.put(pos++, (byte) (ids[i] << 4 | lengths[i] - 1));
+      } else {
+        bits.put(pos++, (byte) ids[i]);
+        bits.put(pos++, (byte) lengths[i]);
+      }
+      bits.put(pos, data, value, lengths[i]);
+      pos += lengths[i];
+      value += lengths[i];
+    }
+    while (pos < offset + length) bits.put(pos++, (byte) 0); // padding
+    return length;
+  }
+
+  /**
+   * Searches an element in a received extension
+   *
+   * @param extension extension including its header, position 0
+   * @param id ID of the element
+   * @return View of the value of the element, or null if it is not present
+   */
+  public static ByteBuffer find(ByteBuffer extension, int id) {
+    if (extension.limit() < 4) return null;
+    int profile = extension.getShort(0) & 0xFFFF;
+    boolean oneByte = profile == ONE_BYTE_PROFILE;
+    if (!oneByte && (profile & 0xFFF0) != TWO_BYTE_PROFILE) return null; // other profile
+    int end = Math.min(extension.limit(), 4 + 4 * (extension.getShort(2) & 0xFFFF));
+    int pos = 4;
+    while (pos < end) {
+      int elementId = extension.get(pos) & 0xFF;
+      if (elementId == 0) { // padding
+        pos++;
+        continue;
+      }
+      int length;
+      if (oneByte) {
+        length = (elementId & 0xF) + 1;
+        elementId >>= 4;
+        if (elementId == 15) return null; // reserved, stops the parsing
+        pos++;
+      } else {
+        if (pos + 1 >= end) return null;
+        length = extension.get(pos + 1) & 0xFF;
+        pos += 2;
+      }
+      if (pos + length > end) return null; // truncated element
+      if (elementId == id) return extension.slice(pos, length);
+      pos += length;
+    }
+    return null;
+  }
+
+  /**
+   * @param value value of an element, e.g. from {@link #find(ByteBuffer, int)}
+   * @return Big-endian unsigned integer of the first 8 bytes
+   */
+  public static long toLong(ByteBuffer value) {
+    long result = 0;
+    for (int i = 0; i < Math.min(8, value.limit()); i++) {
+      result = result << 8 | (value.get(i) & 0xFF);
+    }
+    return result;
+  }
+
+  /**
+   * @param millis time in ms since 1970, e.g. System.currentTimeMillis()
+   * @return 64 bit NTP time stamp, seconds since 1900 in 32.32 fixed point
+   */
+  public static long toNtp(long millis) {
+    long seconds = millis / 1000 + NTP_OFFSET;
+    long fraction = (millis % 1000 << 32) / 1000;
+    return seconds << 32 | fraction;
+  }
+
+  /**
+   * @param ntp 64 bit NTP time stamp
+   * @return Time in ms since 1970
+   */
+  public static long toMillis(long ntp) {
+    long seconds = (ntp >>> 32) - NTP_OFFSET;
+    long fraction = ((ntp & 0xFFFFFFFFL) * 1000 + (1L << 31)) >>> 32; // rounded
+    return seconds * 1000 + fraction;
+  }
+}
@@ -0,0 +1,986 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One RTSP session of the server: the state machine of the RTSP requests, the RTP socket, the
+ * FEC encoder and the source of the frames. The session does no I/O on the RTSP connection
+ * itself, requests are parsed from a reader and responses written to a writer, so it can be
+ * driven by the selector loop of the {@link Server} as well as by a blocking connection.
+ *
+ * <p>Frames are sent by the shared {@link PacingScheduler}, frames of a live source on the thread
+ * of the source.
+ */
+public class RtspSession implements PacingScheduler.Stream, LiveSource.Subscriber {
+
+  // RTP variables:
+  // ----------------
+  // UDP channels connected to the RTP and the FEC port, the same channel if the ports are equal
+  DatagramChannel RTPchannel;
+  DatagramChannel FECchannel;
+  InetAddress ClientIPAddr; // Client IP address
+  int RTP_dest_port = 0; // destination port for RTP packets  (given by the RTSP Client)
+  int FEC_dest_port = 0; // destination port for RTP-FEC packets  (RTP or RTP+2)
+  static volatile int groupSize = 2; // FEC group size of new sessions, set by the GUI
+  FecHandler fec;
+  // Channel errors
+  static volatile double lossRate = 0.0; // simulated loss of all sessions, set by the GUI
+  Random random = new Random(123456); // fixed seed for debugging
+  int dropCounter; // Nr. of dropped media packets
+  // -Dserver.quiet=true suppresses the output per packet, e.g. for many sessions
+  static final boolean QUIET = Boolean.getBoolean("server.quiet");
+
+  // Video variables:
+  // ----------------
+  int imagenb = 0; // image nb of the image currently transmitted
+  FrameSource video; // VideoStream object used to access video frames
+  FramePrefetcher prefetcher; // reads and packetizes frames ahead of the pacer
+  LiveSource live; // shared live input, instead of video and pacer
+  HintTrackReader hint; // pre-packetized video, instead of video and prefetcher
+  int rtpSeqNb = 0; // sequence number of the RTP packets, independent of the frames
+  int fecSeqNb = 0; // sequence number of the shared FEC packets of a live source
+  int ssrc; // synchronization source of the session, random at SETUP
+  // capture time and frame number, sent with every packet of the current frame
+  RtpHeaderExtension extension = new RtpHeaderExtension();
+  int playPosition; // number of the next frame of the file to send
+  int playEnd; // frame after the last frame of the requested range, in playing direction
+  int playStep = 1; // frames to advance per sent frame, negative for reverse (Scale)
+  static int PREFETCH_DEPTH = FramePrefetcher.DEFAULT_DEPTH; // number of frames read ahead
+  Rendition rendition = Rendition.FULL; // quality of the session, chosen at SETUP
+  // packetized frames, shared by all sessions, budget set with -Dframecache.budget
+  static FrameCache frameCache = new FrameCache(FrameCache.BUDGET);
+  // headers of the RTP and FEC packets, shared by all sessions, the payloads are not copied
+  static final int HEADER_BUFFER_SIZE = 256; // RTP header with CSRCs and extension, FEC headers
+  static PacketBufferPool headerPool =
+      new PacketBufferPool(HEADER_BUFFER_SIZE, PacketBufferPool.DEFAULT_MAX_IDLE);
+  static int MJPEG_TYPE = 26; // RTP payload type for MJPEG video
+  static int FRAME_PERIOD = 40; // Frame period of the video to stream, in ms
+  static final int RTP_CLOCK_RATE = 1000; // time stamps count ms
+
+  // sends the frames at the deadlines of their time stamps, shared by all sessions or own thread
+  PacingScheduler scheduler = PacingScheduler.getShared();
+  PacingScheduler.Handle pacer; // pacing of this session, null if not playing
+  // packets of a frame are spread over the frame period or limited to a rate (-Dpacing.rate)
+  static long PACING_RATE = Long.getLong("pacing.rate", 0); // bit/s, 0 spreads each frame
+  static int PACING_BURST = Integer.getInteger("pacing.burst", 4 * 1500); // bytes back-to-back
+  static final double PACING_SPREAD = 0.8; // part of the frame period used for the packets
+  TokenBucket bucket; // send rate of this session
+  // packets of the frame in sending, RFC 2435 header and slice of the cached payload, or null
+  java.util.List<ByteBuffer[]> fragments;
+  static final ByteBuffer NO_HEADER = ByteBuffer.allocate(0); // packets of hint files are complete
+  int hintFrame = -1; // frame of the hint file in sending, -1 if none
+  int nextFragment; // next packet of the frame in sending
+  int fragmentCount; // packets of the frame in sending
+
+  // RTSP variables
+  // ----------------
+  // rtsp states
+  static final int INIT = 0;
+  static final int READY = 1;
+  static final int PLAYING = 2;
+  // rtsp message types
+  static final int SETUP = 3;
+  static final int PLAY = 4;
+  static final int PAUSE = 5;
+  static final int TEARDOWN = 6;
+  static final int OPTIONS = 7;
+  static final int DESCRIBE = 8;
+
+  private static int nextId = 123456; // ID of the next RTSP session
+
+  volatile int state = INIT; // RTSP Server state == INIT or READY or PLAY
+  InetAddress localAddress; // address and port of the RTSP connection at the server
+  int localPort;
+  String VideoFileName; // video file requested from the client
+  static String VideoDir = "videos/";
+  final int RTSP_ID; // ID of the RTSP session
+  int RTSPSeqNb = 0; // Sequence number of RTSP messages within the session
+  String RequestUrl; // URL of the last RTSP request
+  double rangeStart = -1; // npt range of the last request in s, -1 if not given
+  double rangeEnd = -1;
+  int requestScale; // Scale of the last request as frame step, 0 if not given
+  Rendition requestRendition; // rendition requested in the URL, null if not given
+  long requestBandwidth; // Bandwidth header of the last request in bit/s, 0 if not given
+
+  static final String CRLF = "\r\n";
+
+  /**
+   * @param client address of the client, destination of the RTP packets
+   * @param localAddress address of the RTSP connection at the server
+   * @param localPort port of the RTSP connection at the server
+   */
+  public RtspSession(InetAddress client, InetAddress localAddress, int localPort) {
+    this.ClientIPAddr = client;
+    this.localAddress = localAddress;
+    this.localPort = localPort;
+    synchronized (RtspSession.class) {
+      RTSP_ID = nextId++;
+    }
+  }
+
+  /**
+   * Handles one RTSP request: parses it, changes the state and writes the response
+   *
+   * @param reader request up to the empty line at its end
+   * @param writer destination of the response
+   * @throws IOException if the connection is closed, the request or the video is invalid
+   */
+  public void handle_RTSP_request(BufferedReader reader, Writer writer) throws IOException {
+    // parse the request
+    int request_type = parse_RTSP_request(reader);
+
+    switch (request_type) {
+      case SETUP:
+        if (state != INIT) close(); // a new SETUP replaces the media of the session
+        // Wait for the SETUP message from the client
+        state = READY;
+        ssrc = new Random().nextInt(); // announced in the Transport header
+        System.out.println("New RTSP state: READY");
+
+        // Send response
+        send_RTSP_response(SETUP, writer);
+
+        // init the VideoStream object:
+        if (LiveSource.isLive(VideoFileName)) {
+          live = LiveSource.get(VideoFileName);
+          live.setFecGroupSize(groupSize);
+        } else if (VideoFileName.endsWith(HintTrackReader.SUFFIX)) {
+          hint = new HintTrackReader(VideoFileName);
+        } else {
+          video = openVideo(VideoFileName);
+          rendition = selectRendition();
+          prefetcher = new FramePrefetcher(video, VideoFileName, frameCache, PREFETCH_DEPTH);
+          prefetcher.setRendition(rendition);
+          prefetcher.start();
+        }
+        imagenb = 0;
+        rtpSeqNb = 0;
+        fecSeqNb = 0;
+        bucket = new TokenBucket(PACING_RATE / 8, PACING_BURST);
+        fragments = null;
+        hintFrame = -1;
+        fragmentCount = 0;
+        nextFragment = 0;
+        playPosition = 0;
+        playEnd = getFrameCount();
+        playStep = 1;
+
+        // init RTP socket and FEC
+        RTPchannel = DatagramChannel.open();
+        RTPchannel.connect(new InetSocketAddress(ClientIPAddr, RTP_dest_port));
+        if (FEC_dest_port == RTP_dest_port) {
+          FECchannel = RTPchannel;
+        } else {
+          FECchannel = DatagramChannel.open();
+          FECchannel.connect(new InetSocketAddress(ClientIPAddr, FEC_dest_port));
+        }
+        fec = new FecHandler(groupSize);
+        break;
+
+      case PLAY:
+        // a PLAY with Range or Scale is also accepted while playing to change the position
+        boolean seek = rangeStart >= 0 || rangeEnd >= 0 || requestScale != 0;
+        if (state == READY || (state == PLAYING && seek)) {
+          // stop sending, afterwards the position can be changed on this thread
+          stopPacing();
+          if (seek) seek();
+          // send back response
+          send_RTSP_response(PLAY, writer);
+          // start pacing or receive frames from the live source
+          if (live == null) startPacing();
+          else if (state == READY) live.addSubscriber(this);
+          // update state
+          state = PLAYING;
+          System.out.println("New RTSP state: PLAYING");
+        }
+        break;
+
+      case PAUSE:
+        if (state == PLAYING) {
+          // send back response
+          send_RTSP_response(PAUSE, writer);
+          // stop sending
+          stopPacing();
+          if (live != null) live.removeSubscriber(this);
+          // update state
+          state = READY;
+          System.out.println("New RTSP state: READY");
+        }
+        break;
+
+      case TEARDOWN:
+        // send back response
+        send_RTSP_response(TEARDOWN, writer);
+        close();
+        break;
+
+      case OPTIONS:
+        System.out.println("Options request");
+        send_RTSP_response(OPTIONS, writer);
+        break;
+
+      case DESCRIBE:
+        System.out.println("DESCRIBE Request");
+        send_RTSP_response(DESCRIBE, writer);
+        break;
+
+      default:
+        System.out.println("Wrong request");
+    }
+  }
+
+  /**
+   * Stops sending and releases the media of the session, e.g. at TEARDOWN or when the
+   * connection is closed. The session returns to the state INIT.
+   */
+  public void close() {
+    if (state == INIT) return;
+    state = INIT;
+    // stop sending
+    stopPacing();
+    if (live != null) {
+      live.removeSubscriber(this);
+      live = null;
+    } else if (hint != null) {
+      hint.close();
+      hint = null;
+    } else if (video != null) {
+      prefetcher.stop();
+      video.close();
+      video = null;
+    }
+    closeChannel(RTPchannel);
+    closeChannel(FECchannel);
+    System.out.println("New RTSP state: INIT");
+  }
+
+  private static void closeChannel(DatagramChannel channel) {
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      System.out.println("Exception caught: " + ex);
+    }
+  }
+
+  /** Closes the session and stops its own scheduler, e.g. when the connection is closed */
+  public void dispose() {
+    close();
+    if (scheduler != PacingScheduler.getShared()) scheduler.shutdown();
+  }
+
+  /** @return Number of RTSP session */
+  public int getId() {
+    return RTSP_ID;
+  }
+
+  /** @return RTSP state: INIT, READY or PLAYING */
+  public int getState() {
+    return state;
+  }
+
+  /**
+   * Sends the frames of this session with an own scheduler, e.g. on a virtual thread, instead of
+   * the shared one. The scheduler is stopped when the session is closed.
+   *
+   * @param threads factory of the thread of the scheduler
+   */
+  public void setOwnScheduler(ThreadFactory threads) {
+    scheduler = new PacingScheduler("Pacer " + RTSP_ID, threads, 0);
+  }
+
+  /** @return Highest delay of a frame after its deadline in µs, 0 if not playing */
+  public long getMaxLateness() {
+    PacingScheduler.Handle handle = pacer;
+    return handle == null ? 0 : handle.getMaxLateness();
+  }
+
+  /** @return Description of the last sent frame for the GUI */
+  public String getStatus() {
+    PacingScheduler.Handle handle = pacer;
+    String late = handle == null ? ""
+        : "  late: " + handle.getNrLate() + " max: " + handle.getMaxLateness() + " µs";
+    if (live != null) return "Send live frame #" + imagenb;
+    if (hint != null) return "Send hinted frame #" + imagenb + late;
+    FramePrefetcher frames = prefetcher;
+    if (frames == null) return "Session " + RTSP_ID;
+    return "Send frame #" + imagenb + "  prefetch: " + frames.getDepth()
+        + " / underruns: " + frames.getNrUnderruns()
+        + "  cache hits: " + frameCache.getNrHits() + " / misses: " + frameCache.getNrMisses()
+        + " / evictions: " + frameCache.getNrEvictions() + late;
+  }
+
+
+  /**
+   * Opens the video file, memory-mapped if possible
+   *
+   * @param fileName path of the MJPEG file
+   * @return FrameSource for the file
+   * @throws IOException if the file cannot be opened
+   */
+  private static FrameSource openVideo(String fileName) throws IOException {
+    if (new File(fileName).length() <= Integer.MAX_VALUE) {
+      return new MappedVideoReader(fileName);
+    }
+    // too large for a single mapping -> read as stream
+    return new VideoReader(fileName);
+  }
+
+  /**
+   * Selects the rendition of the session. A rendition named in the URL is used as requested,
+   * otherwise the Bandwidth header decides, measured with the first frame of the video.
+   *
+   * @return Rendition to send
+   * @throws IOException if the first frame cannot be read
+   */
+  private Rendition selectRendition() throws IOException {
+    Rendition selected = Rendition.FULL;
+    if (requestRendition != null) {
+      selected = requestRendition;
+    } else if (requestBandwidth > 0 && video.getFrameIndex() != null) {
+      FrameIndex index = video.getFrameIndex();
+      byte[] sample = new byte[index.getLength(0)];
+      try (RandomAccessFile file = new RandomAccessFile(VideoFileName, "r")) {
+        file.seek(index.getOffset(0));
+        file.readFully(sample);
+      }
+      selected = Rendition.forBandwidth(requestBandwidth, sample, FRAME_PERIOD);
+    }
+    System.out.println("Rendition: " + selected);
+    return selected;
+  }
+
+  /**
+   * @return Number of frames of the video or -1, if the source has no index
+   * @throws IOException if the index cannot be created
+   */
+  private int getFrameCount() throws IOException {
+    if (hint != null) return hint.getFrameCount();
+    if (video != null && video.getFrameIndex() != null) {
+      return video.getFrameIndex().getFrameCount();
+    }
+    return -1;
+  }
+
+  /**
+   * Positions the video at the range of the PLAY request. The frame numbers are computed from the
+   * npt times and the frames are located through the index, so the file is not scanned again.
+   * Sequence numbers and time stamps continue, the client sees a gapless stream.
+   *
+   * <p>For a Scale other than 1 only every n-th frame is sent, in reverse for a negative Scale.
+   * The frame rate stays the same, so the bitrate stays close to normal playback.
+   */
+  private void seek() {
+    try {
+      int frameCount = getFrameCount();
+      if (frameCount < 0) {
+        System.out.println("Range ignored, source cannot seek");
+        return;
+      }
+      playStep = requestScale != 0 ? requestScale : 1; // without Scale at normal speed again
+      int start = rangeStart < 0 ? playPosition : toFrame(rangeStart);
+      if (playStep > 0) {
+        playPosition = Math.max(0, Math.min(start, frameCount));
+        playEnd = rangeEnd < 0 ? frameCount : Math.min(toFrame(rangeEnd), frameCount);
+      } else {
+        // reverse: the range ends at the earlier time, its last frame is included
+        playPosition = Math.max(0, Math.min(start, frameCount - 1));
+        playEnd = rangeEnd < 0 ? -1 : Math.max(toFrame(rangeEnd), 0) - 1;
+      }
+      System.out.println("Seek to frame " + playPosition + " - " + playEnd + " step " + playStep);
+
+      // the rest of a frame interrupted by stopPacing belongs to the old position
+      fragments = null;
+      hintFrame = -1;
+      fragmentCount = 0;
+      nextFragment = 0;
+
+      if (hint != null) {
+        hint.setPosition(playPosition);
+      } else {
+        prefetcher.stop(); // prepared frames belong to the old position
+        prefetcher = new FramePrefetcher(video, VideoFileName, frameCache, PREFETCH_DEPTH);
+        prefetcher.setRendition(rendition);
+        prefetcher.setRange(playPosition, playEnd, playStep);
+        prefetcher.start();
+      }
+    } catch (IOException ex) {
+      System.out.println("Seek failed: " + ex);
+    }
+  }
+
+  /**
+   * @param npt normal play time in s
+   * @return number of the frame shown at this time
+   */
+  private static int toFrame(double npt) {
+    return (int) (Math.round(npt * 1000) / FRAME_PERIOD);
+  }
+
+  /** Starts sending at the current position, the next frame is due immediately */
+  private void startPacing() {
+    pacer = scheduler.schedule(this, RTP_CLOCK_RATE, (imagenb + 1) * FRAME_PERIOD);
+  }
+
+  /**
+   * Stops sending, a batch of packets in sending is finished before the method returns. A frame
+   * may be interrupted between its batches, its remaining packets are sent by the next
+   * startPacing, unless a seek drops them.
+   */
+  private void stopPacing() {
+    if (pacer != null) pacer.cancel();
+    pacer = null;
+  }
+
+  /**
+   * Handler for the deadlines of the frames, called on the thread of the scheduler. A frame is
+   * started at its deadline and its packets are sent as far as the token bucket allows, the
+   * scheduler calls again with the same time stamp for the remaining packets.
+   *
+   * @param handle pacing of this session
+   * @param timestamp RTP time stamp of the due frame
+   * @return RTP time stamp of the next frame, the same one while the frame is not sent completely
+   */
+  public int onDeadline(PacingScheduler.Handle handle, int timestamp) {
+    try {
+      if (fragmentCount == nextFragment) {
+        boolean started = hint != null ? startHintFrame(handle) : startVideoFrame(handle);
+        if (!started) return timestamp; // underrun, retried shortly, or cancelled at the end
+      }
+      if (!sendPending(handle)) return timestamp;
+    } catch (Exception ex) {
+      System.out.println("Exception caught: " + ex);
+      ex.printStackTrace();
+      handle.cancel(); // only this session stops sending
+    }
+    return (imagenb + 1) * FRAME_PERIOD;
+  }
+
+  /**
+   * Takes the next frame from the prefetcher and fragments it
+   *
+   * @param handle pacing of this session, cancelled at the end of the video
+   * @return True, if a frame is started
+   */
+  private boolean startVideoFrame(PacingScheduler.Handle handle) {
+    ByteBuffer frame = prefetcher.poll(); // get next RTP-JPEG payload, prepared in background
+    if (frame == null) {
+      if (prefetcher.isFinished()) {
+        handle.cancel();
+      } else {
+        System.out.println("Prefetch underrun: " + prefetcher.getNrUnderruns()
+            + "  min. depth: " + prefetcher.getMinDepth());
+      }
+      return false;
+    }
+    startFrame();
+    if (!QUIET) System.out.println("Frame size: " + frame.remaining());
+    fragments = JpegFrame.fragmentRfc2435Payload(frame, RTPpacket.MAX_PAYLOAD_SIZE);
+    hintFrame = -1;
+    startPacing(fragments.size(), frame.remaining());
+    playPosition += playStep;
+    return true;
+  }
+
+  /**
+   * Starts the prepared packets of the next frame of the hint file
+   *
+   * @param handle pacing of this session, cancelled at the end of the range
+   * @return True, if a frame is started
+   */
+  private boolean startHintFrame(PacingScheduler.Handle handle) {
+    int frameNb = hint.getPosition();
+    if (playStep > 0 ? frameNb >= playEnd : frameNb <= playEnd) {
+      handle.cancel();
+      return false;
+    }
+    startFrame();
+    hintFrame = frameNb;
+    fragments = null;
+    int packets = hint.getPacketCount(frameNb);
+    int bytes = 0;
+    for (int i = 0; i < packets; i++) {
+      bytes += hint.getPacket(frameNb, i).remaining();
+    }
+    startPacing(packets, bytes);
+    // time stamps follow the sent frames, so they continue after a seek
+    hint.setPosition(frameNb + playStep);
+    playPosition = frameNb + playStep;
+    return true;
+  }
+
+  /**
+   * Sets the rate of the token bucket for a new frame. Without a configured rate the frame
+   * including its FEC packets is spread over most of the frame period.
+   *
+   * @param packets number of media packets of the frame
+   * @param payloadBytes size of their payloads
+   */
+  private void startPacing(int packets, int payloadBytes) {
+    fragmentCount = packets;
+    nextFragment = 0;
+    if (PACING_RATE > 0) return;
+    long bytes = payloadBytes + (long) packets * (RTPpacket.HEADER_SIZE + extension.getLength());
+    bytes += bytes / fec.getFecGroupSize(); // one FEC packet per group
+    bucket.setRate((long) (bytes * 1000 / (FRAME_PERIOD * PACING_SPREAD)), System.nanoTime());
+  }
+
+  /**
+   * Sends the packets of the current frame as long as the token bucket has tokens. Packets are
+   * sent in batches of half the burst size, which halves the calls of the scheduler.
+   *
+   * @param handle pacing of this session, resumed when the tokens for the next batch are filled
+   * @return True, if all packets of the frame are sent
+   * @throws Exception Throws all
+   */
+  private boolean sendPending(PacingScheduler.Handle handle) throws Exception {
+    boolean first = true; // the first packet of a call is sent, its tokens were awaited
+    while (nextFragment < fragmentCount) {
+      ByteBuffer payloadHeader = hintFrame >= 0 ? NO_HEADER : fragments.get(nextFragment)[0];
+      ByteBuffer payload =
+          hintFrame >= 0 ? hint.getPacket(hintFrame, nextFragment) : fragments.get(nextFragment)[1];
+      int length = payloadHeader.remaining() + payload.remaining();
+      long delay = bucket.getDelay(length + RTPpacket.HEADER_SIZE, System.nanoTime());
+      if (delay > 0 && !first) {
+        // wait for a batch of packets, not for every single one
+        long batch = Math.max(length, bucket.getBurst() / 2);
+        handle.resumeAfter(bucket.getDelay(batch, System.nanoTime()));
+        return false;
+      }
+      first = false;
+      boolean marker = hintFrame >= 0
+          ? hint.isMarker(hintFrame, nextFragment)
+          : nextFragment == fragmentCount - 1;
+      bucket.consume(sendRtp(payloadHeader, payload, imagenb * FRAME_PERIOD, marker));
+      nextFragment++;
+    }
+    fragments = null;
+    hintFrame = -1;
+    return true;
+  }
+
+  /**
+   * Handler for frames of a live source, called as soon as the frame is complete
+   *
+   * @param jpeg JPEG frame
+   */
+  public void onFrame(LiveFrame frame) {
+    try {
+      sendFrame(frame);
+    } catch (Exception ex) {
+      System.out.println("Exception caught: " + ex);
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Sends one frame of a live source as RTP packets of at most MTU size, which share the time
+   * stamp of the frame. The marker bit is set on the last fragment. Payloads and FEC packets are
+   * shared with the other sessions of the source, only the headers are written for this session.
+   *
+   * @param frame packetized frame of the live source
+   * @throws Exception Throws all
+   */
+  private void sendFrame(LiveFrame frame) throws Exception {
+    startFrame(frame.getCaptureTime());
+    int timestamp = imagenb * FRAME_PERIOD;
+    int snOffset = rtpSeqNb + 1; // sequence number of the first packet of the frame
+    if (!QUIET) System.out.println("Live frame: " + frame.getNumber());
+    int count = frame.getPacketCount();
+    for (int i = 0; i < count; i++) {
+      rtpSeqNb++;
+      RTPpacket rtp_packet =
+          RTPpacket.buildHeader(
+              headerPool.acquire(), MJPEG_TYPE, rtpSeqNb, timestamp, ssrc, null, extension,
+              frame.getPayloadHeader(i), frame.getPayload(i));
+      try {
+        if (i == count - 1) rtp_packet.setmarker(1);
+        sendPacketWithError(RTPchannel, rtp_packet.getBuffers(), false);
+      } finally {
+        rtp_packet.release();
+      }
+
+      FECpacket fecPacket = frame.getFecPacket(i);
+      if (fecPacket != null) {
+        PacketBufferPool.Buffer buffer = headerPool.acquire();
+        try {
+          ByteBuffer[] packet =
+              fecPacket.getBuffers(buffer.array(), ++fecSeqNb, snOffset, timestamp, ssrc);
+          sendPacketWithError(FECchannel, packet, true);
+        } finally {
+          buffer.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the next frame and sets the header extension of its packets. The capture time is the
+   * time the frame is handed to the network.
+   */
+  private void startFrame() {
+    startFrame(System.currentTimeMillis());
+  }
+
+  /** @param captureTime capture time of the frame in ms, for live sources when it was completed */
+  private void startFrame(long captureTime) {
+    imagenb++; // image counter
+    extension.clear();
+    extension.put(
+        RtpHeaderExtension.CAPTURE_TIME_ID, RtpHeaderExtension.toNtp(captureTime), 8);
+    extension.put(
+        RtpHeaderExtension.FRAME_ID_ID, imagenb, RtpHeaderExtension.FRAME_ID_LENGTH);
+  }
+
+  /**
+   * Sends one RTP packet and the FEC packet, if the group is complete
+   *
+   * @param payloadHeader RFC 2435 header sent before the payload, empty if it is included
+   * @param payload RTP-JPEG payload
+   * @param timestamp RTP time stamp
+   * @param marker marker bit, set for the last packet of a frame
+   * @return Number of bytes of the RTP packet and the FEC packet
+   * @throws Exception Throws all
+   */
+  private int sendRtp(ByteBuffer payloadHeader, ByteBuffer payload, int timestamp, boolean marker)
+      throws Exception {
+    rtpSeqNb++;
+
+    // Builds an RTPpacket object with the header in a pooled buffer, the payload is a view
+    RTPpacket rtp_packet =
+        RTPpacket.buildHeader(
+            headerPool.acquire(), MJPEG_TYPE, rtpSeqNb, timestamp, ssrc, null, extension,
+            payloadHeader, payload);
+    try {
+      if (marker) rtp_packet.setmarker(1);
+      // rtp_packet.printheader(); // Show header of bitstream if necessary
+      // rtp_packet.printpayload(8);
+
+      // send header and payload with one gathering write over the UDP channel
+      int sent = sendPacketWithError(RTPchannel, rtp_packet.getBuffers(), false);
+
+      // FEC handling
+      fec.setRtp(rtp_packet);
+      if (fec.isReady()) {
+        if (!QUIET) System.out.println("FEC-Encoder ready...");
+        PacketBufferPool.Buffer buffer = headerPool.acquire();
+        try {
+          // fec.printHeaders();
+          // send to the FEC dest_port, the headers from the pooled buffer
+          sent += sendPacketWithError(FECchannel, fec.getPacketBuffers(buffer.array()), true);
+        } finally {
+          buffer.release();
+        }
+      }
+      return sent;
+    } finally {
+      rtp_packet.release();
+    }
+  }
+
+  /**
+   * @param channel connected UDP channel
+   * @param packet parts of the datagram, sent with one gathering write
+   * @param fec true for a FEC packet
+   * @return Length of the datagram, also if it is dropped
+   * @throws Exception Throws all
+   */
+  private int sendPacketWithError(DatagramChannel channel, ByteBuffer[] packet, boolean fec)
+      throws Exception {
+    int length = 0;
+    for (ByteBuffer part : packet) length += part.remaining();
+    String label;
+    if (fec) label = " fec ";
+    else label = " media ";
+    // TASK_F correct the if-instruction to work properly
+    if (random.nextDouble() > lossRate) {
+      if (!QUIET) System.out.println("Send frame: " + imagenb + label);
+      try {
+        channel.write(packet);
+      } catch (PortUnreachableException ex) {
+        // ICMP of an earlier datagram on the connected channel, e.g. the client is not ready
+      }
+    } else {
+      // System.err.println("Dropped frame: " + imagenb + label);
+      if (!fec) dropCounter++;
+    }
+    if (!QUIET) System.out.println("Drop count media packets: " +  dropCounter);
+    return length;
+  }
+
+  /**
+   * Parse RTSP-Request
+   *
+   * @param reader input of the RTSP connection
+   * @return RTSP-Request Type (SETUP, PLAY, etc.)
+   * @throws IOException if the connection is closed or the request is malformed
+   */
+  int parse_RTSP_request(BufferedReader reader) throws IOException {
+    int request_type = -1;
+    try {
+      System.out.println("*** wait for RTSP-Request ***");
+      // parse request line and extract the request_type:
+      String RequestLine;
+      do { // empty lines between requests are skipped
+        RequestLine = reader.readLine();
+      } while (RequestLine != null && RequestLine.isEmpty());
+      if (RequestLine == null) throw new EOFException("RTSP connection closed");
+      System.out.println("RTSP Server - Received from Client:");
+      System.out.println(RequestLine);
+
+      StringTokenizer tokens = new StringTokenizer(RequestLine);
+      String request_type_string = tokens.nextToken();
+      RequestUrl = tokens.nextToken();
+
+      // convert to request_type structure:
+      switch ((request_type_string)) {
+        case "SETUP":
+          request_type = SETUP;
+          break;
+        case "PLAY":
+          request_type = PLAY;
+          break;
+        case "PAUSE":
+          request_type = PAUSE;
+          break;
+        case "TEARDOWN":
+          request_type = TEARDOWN;
+          break;
+        case "OPTIONS":
+          request_type = OPTIONS;
+          break;
+        case "DESCRIBE":
+          request_type = DESCRIBE;
+          break;
+      }
+
+      if (request_type == SETUP || request_type == DESCRIBE) {
+        // extract VideoFileName from RequestLine
+        String dir = RequestUrl;
+        //String[] tok = dir.split(".+?/(?=[^/]+$)");
+        String[] tok = dir.split("/");
+        //VideoFileName = VideoDir + tok[1];
+        // an optional query selects the rendition, e.g. movie.mjpeg?rendition=half
+        String[] query = tok[3].split("\\?", 2);
+        VideoFileName = VideoDir + query[0];
+        requestRendition = query.length > 1 ? parse_rendition(query[1]) : null;
+        System.out.println("File: " + VideoFileName);
+      }
+
+      // parse all header lines until the end of the request (empty line)
+      rangeStart = -1;
+      rangeEnd = -1;
+      requestScale = 0;
+      requestBandwidth = 0;
+      String line = reader.readLine();
+      while (line != null && !line.equals("")) {
+        System.out.println(line);
+        tokens = new StringTokenizer(line);
+        switch (tokens.nextToken().toLowerCase()) {
+          case "cseq:":
+            RTSPSeqNb = Integer.parseInt(tokens.nextToken());
+            break;
+          case "transport:":
+            if (request_type == SETUP) {
+              // extract RTP_dest_port after Char "="
+              RTP_dest_port = Integer.parseInt(line.split("=")[1].split("-")[0]);
+              FEC_dest_port = RTP_dest_port + 0;
+              System.out.println("Client-Port: " + RTP_dest_port);
+            }
+            break;
+          case "range:":
+            parse_range(tokens.nextToken());
+            break;
+          case "scale:":
+            // only whole frame steps, slow motion is played at normal speed
+            double scale = Double.parseDouble(tokens.nextToken());
+            requestScale = (int) Math.round(scale);
+            if (requestScale == 0) requestScale = scale < 0 ? -1 : 1;
+            break;
+          case "bandwidth:":
+            requestBandwidth = Long.parseLong(tokens.nextToken());
+            break;
+          default: // Session and others are not checked for now
+        }
+        line = reader.readLine();
+      }
+      System.out.println("*** End of Request ***\n");
+
+    } catch (RuntimeException ex) {
+      // e.g. a missing token or number, the connection of the client is closed
+      throw new IOException("Malformed RTSP request", ex);
+    }
+    return (request_type);
+  }
+
+  /**
+   * @param query query of the request URL, e.g. rendition=half
+   * @return requested rendition or null, if none or an unknown one is given
+   */
+  private static Rendition parse_rendition(String query) {
+    for (String parameter : query.split("&")) {
+      String[] pair = parameter.split("=", 2);
+      if (pair[0].equals("rendition") && pair.length > 1) {
+        Rendition rendition = Rendition.forName(pair[1]);
+        if (rendition == null) System.out.println("Unknown rendition: " + pair[1]);
+        return rendition;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses a Range header in npt format, e.g. npt=10-20, npt=10-, npt=now- or npt=0:01:30.5-
+   *
+   * @param range value of the Range header
+   */
+  private void parse_range(String range) {
+    if (!range.startsWith("npt=")) {
+      System.out.println("Unsupported range: " + range);
+      return;
+    }
+    String[] npt = range.substring(4).split("-", -1);
+    rangeStart = parse_npt(npt[0]);
+    rangeEnd = npt.length > 1 ? parse_npt(npt[1]) : -1;
+  }
+
+  /**
+   * @param npt npt time in seconds or hh:mm:ss, "now" or empty
+   * @return time in s or -1, if no time is given
+   */
+  private static double parse_npt(String npt) {
+    if (npt.isEmpty() || npt.equals("now")) return -1;
+    double seconds = 0;
+    for (String part : npt.split(":")) {
+      seconds = seconds * 60 + Double.parseDouble(part);
+    }
+    return seconds;
+  }
+
+  /**
+   * Send RTSP Response
+   *
+   * @param method RTSP-Method
+   * @param writer output of the RTSP connection
+   * @throws IOException if the response cannot be written
+   */
+  void send_RTSP_response(int method, Writer writer) throws IOException {
+    System.out.println("*** send RTSP-Response ***");
+    writer.write("RTSP/1.0 200 OK" + CRLF);
+    writer.write("CSeq: " + RTSPSeqNb + CRLF);
+
+    // 3th line depends on Request
+    if (method == OPTIONS) {
+      writer.write(options() );
+    } else if (method == DESCRIBE) {
+      writer.write(describe() );
+
+    } else {
+      writer.write("Session: " + RTSP_ID + CRLF);
+      if (method == SETUP) writer.write(transport());
+      if (method == PLAY) writer.write(play());
+    }
+
+    // Send end of response
+    if (method != DESCRIBE) writer.write(CRLF);
+    writer.flush();
+    System.out.println("*** RTSP-Server - Sent response to Client ***");
+  }
+
+  /** Creates a OPTIONS response string
+   * @return  Options string, starting with: Public: ...
+   */
+  //TASK_F Complete the OPTIONS response
+  private String options() {
+    return "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE" + CRLF;
+  }
+
+
+  /**
+   * Creates the Transport line of the SETUP response with the SSRC of the session
+   *
+   * @return header line
+   */
+  private String transport() {
+    return "Transport: RTP/AVP;unicast;client_port=" + RTP_dest_port + "-" + (RTP_dest_port + 1)
+        + ";ssrc=" + String.format("%08X", ssrc) + CRLF;
+  }
+
+  /**
+   * Creates the Range and RTP-Info lines of the PLAY response
+   *
+   * @return header lines for the next packet to send
+   */
+  private String play() throws IOException {
+    String header = "";
+    if (live == null && getFrameCount() >= 0) {
+      // the range ends with the time of the last frame in playing direction
+      int last = playStep > 0 ? playEnd : playEnd + 1;
+      header += "Range: npt=" + playPosition * FRAME_PERIOD / 1000.0 + "-"
+          + last * FRAME_PERIOD / 1000.0 + CRLF;
+      header += "Scale: " + playStep + CRLF;
+    }
+    header += "RTP-Info: url=" + RequestUrl + ";seq=" + (rtpSeqNb + 1)
+        + ";rtptime=" + (imagenb + 1) * FRAME_PERIOD + CRLF;
+    return header;
+  }
+
+  /** Creates a DESCRIBE response string in SDP format for current media */
+  //TASK_F Complete the DESCRIBE response
+  private String describe() {
+    StringWriter rtspHeader = new StringWriter();
+    StringWriter rtspBody = new StringWriter();
+
+    // Write the body first so we can get the size later
+    rtspBody.write("v=0" + CRLF);
+    rtspBody.write("a=control:streamid=" + RTSP_ID + CRLF);
+    rtspBody.write("m=video 0 RTP/AVP 96" + CRLF);
+    rtspBody.write("a=extmap:" + RtpHeaderExtension.CAPTURE_TIME_ID + " "
+        + RtpHeaderExtension.CAPTURE_TIME_URI + CRLF);
+    rtspBody.write("a=extmap:" + RtpHeaderExtension.FRAME_ID_ID + " "
+        + RtpHeaderExtension.FRAME_ID_URI + CRLF);
+    // media attributes from the header of a hint file
+    if (VideoFileName.endsWith(HintTrackReader.SUFFIX)) {
+      try {
+        HintTrackReader reader = new HintTrackReader(VideoFileName);
+        try {
+          long duration = (long) reader.getFrameCount() * reader.getFramePeriod();
+          rtspBody.write("a=range:npt=0-" + duration / 1000.0 + CRLF);
+          rtspBody.write("a=framerate:" + 1000 / reader.getFramePeriod() + CRLF);
+          if (reader.getFrameCount() > 0) {
+            // width and height in units of 8 pixels in the RFC 2435 header of a packet
+            ByteBuffer header = reader.getPacket(0, 0);
+            rtspBody.write("a=x-dimensions:" + (header.get(6) & 0xFF) * 8 + ","
+                + (header.get(7) & 0xFF) * 8 + CRLF);
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (IOException ex) {
+        System.out.println("No hint file " + VideoFileName + ": " + ex);
+      }
+    } else if (!LiveSource.isLive(VideoFileName)) {
+      // media attributes from the frame index, loaded from the sidecar if available
+      try {
+        FrameIndex index = FrameIndex.forFile(VideoFileName);
+        rtspBody.write("a=range:npt=0-" + index.getDuration(FRAME_PERIOD) / 1000.0 + CRLF);
+        rtspBody.write("a=framerate:" + 1000 / FRAME_PERIOD + CRLF);
+        rtspBody.write("a=x-dimensions:" + index.getWidth() + "," + index.getHeight() + CRLF);
+        rtspBody.write("a=x-renditions:" + Rendition.getNames() + CRLF);
+      } catch (IOException ex) {
+        System.out.println("No frame index for " + VideoFileName + ": " + ex);
+      }
+    }
+    rtspBody.write("m=audio 0 RTP/AVP 97" + CRLF);
+
+    rtspHeader.write("Content-Base: " + localAddress + ":" + localPort + CRLF);
+    rtspHeader.write("Content-Type: " + "application/sdp" + CRLF);
+    rtspHeader.write("Content-Length: " + rtspBody.getBuffer().length() + CRLF);
+    rtspHeader.write(CRLF);
+
+    return rtspHeader.toString() + rtspBody.toString();
+  }
+}
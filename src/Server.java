@@ -5,88 +5,57 @@ usage: java Server [RTSP listening port]
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-public class Server extends JFrame implements ActionListener, ChangeListener {
-
-  // RTP variables:
-  // ----------------
-  DatagramSocket RTPsocket; // socket to be used to send and receive UDP packets
-  DatagramPacket senddp; // UDP packet containing the video frames
-  InetAddress ClientIPAddr; // Client IP address
-  int RTP_dest_port = 0; // destination port for RTP packets  (given by the RTSP Client)
-  int FEC_dest_port = 0; // destination port for RTP-FEC packets  (RTP or RTP+2)
-  final static int startGroupSize = 2;
-  FecHandler fec;
-  //FecHandler fec = new FecHandler(startGroupSize);
-  // Channel errors
-  private double lossRate = 0.0;
-  Random random = new Random(123456); // fixed seed for debugging
-  int dropCounter; // Nr. of dropped media packets
+/**
+ * RTSP server for many concurrent sessions. One thread accepts the RTSP connections and reads
+ * their requests with a {@link Selector}, each connection has its own {@link RtspSession}. The
+ * frames of all sessions are sent by the shared {@link PacingScheduler}.
+ *
+ * <p>With -Dserver.mode=threads each connection is read by its own thread with blocking I/O and
+ * each session sends its frames with its own scheduler thread. Virtual threads are used if the
+ * runtime supports them, see {@link VirtualThreads}.
+ *
+ * <p>The GUI shows the state of the sessions and sets the channel errors and the FEC group size
+ * of all sessions. Without a display the server runs headless.
+ */
+public class Server extends JFrame implements ChangeListener {
+  static final int GUI_PERIOD = 500; // update of the GUI in ms
+  static final int MAX_REQUEST = 16 * 1024; // longest RTSP request in bytes
+  static final int BACKLOG = 1024; // pending connections, e.g. at the start of a load test
+  static final int STATISTICS_PERIOD = 5000; // output of the statistics without GUI in ms
+  // selector: one thread for all connections, threads: one thread per connection and session
+  static final String MODE = System.getProperty("server.mode", "selector");
+
+  // sessions of all open RTSP connections
+  static Set<RtspSession> sessions = ConcurrentHashMap.newKeySet();
 
   // GUI:
   // ----------------
   JLabel label;
   static JLabel stateLabel;
-
-  // Video variables:
-  // ----------------
-  static int imagenb = 0; // image nb of the image currently transmitted
-  VideoReader video; // VideoStream object used to access video frames
-  static int MJPEG_TYPE = 26; // RTP payload type for MJPEG video
-  static int FRAME_PERIOD = 40; // Frame period of the video to stream, in ms
-
-  Timer timer; // timer used to send the images at the video frame rate
-  // byte[] buf; // buffer used to store the images to send to the client
-
-  // RTSP variables
-  // ----------------
-  // rtsp states
-  static final int INIT = 0;
-  static final int READY = 1;
-  static final int PLAYING = 2;
-  // rtsp message types
-  static final int SETUP = 3;
-  static final int PLAY = 4;
-  static final int PAUSE = 5;
-  static final int TEARDOWN = 6;
-  static final int OPTIONS = 7;
-  static final int DESCRIBE = 8;
-
-  static int state; // RTSP Server state == INIT or READY or PLAY
-  Socket RTSPsocket; // socket used to send/receive RTSP messages
-  // input and output stream filters
-  static BufferedReader RTSPBufferedReader;
-  static BufferedWriter RTSPBufferedWriter;
-  static String VideoFileName; // video file requested from the client
-  static String VideoDir = "videos/";
-  static int RTSP_ID = 123456; // ID of the RTSP session
-  int RTSPSeqNb = 0; // Sequence number of RTSP messages within the session
-
-  static final String CRLF = "\r\n";
-
-
+  Timer timer; // updates the labels from the sessions
 
   public Server() {
     super("Server"); // init Frame
 
-    // init Timer
-    timer = new Timer(FRAME_PERIOD, this);
-    timer.setInitialDelay(0);
-    timer.setCoalesce(false); // Coalesce can lead to buffer underflow in client
-
     // Handler to close the main window
     addWindowListener(
             new WindowAdapter() {
               public void windowClosing(WindowEvent e) {
-                // stop the timer and exit
-                timer.stop();
+                // stop sending and exit
+                sessions.forEach(RtspSession::close);
                 System.exit(0);
               }
             });
@@ -106,7 +75,7 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     dropRate.setPaintTicks(true);
     dropRate.setPaintLabels(true);
     dropRate.setName("p");
-    JSlider groupSize = new JSlider(JSlider.HORIZONTAL, 2, 48, startGroupSize);
+    JSlider groupSize = new JSlider(JSlider.HORIZONTAL, 2, 48, RtspSession.groupSize);
     groupSize.addChangeListener(this::stateChanged);
     groupSize.setMajorTickSpacing(4);
     groupSize.setMinorTickSpacing(1);
@@ -116,6 +85,9 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     mainPanel.add(groupSize);
     mainPanel.add(dropRate);
     getContentPane().add(mainPanel, BorderLayout.CENTER);
+
+    timer = new Timer(GUI_PERIOD, e -> updateLabels());
+    timer.start();
   }
 
   /**
@@ -128,345 +100,286 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     if (!source.getValueIsAdjusting()) {
       if (source.getName().equals("k")) {
         int k = source.getValue();
-        fec.setFecGroupSize(k);
+        RtspSession.groupSize = k;
+        for (RtspSession session : sessions) {
+          FecHandler fec = session.fec;
+          if (fec != null) fec.setFecGroupSize(k); // the sender starts its next group with k
+          LiveSource live = session.live;
+          if (live != null) live.setFecGroupSize(k); // applied with the next live frame
+        }
         System.out.println("New Group size: " + k);
       } else {
-        lossRate = source.getValue();
-        lossRate = lossRate / 100;
-        System.out.println("New packet error rate: " + lossRate);
+        RtspSession.lossRate = source.getValue() / 100.0;
+        System.out.println("New packet error rate: " + RtspSession.lossRate);
       }
     }
   }
 
+  /** Shows the state of a single session or the number of sessions per state */
+  private void updateLabels() {
+    int[] count = new int[3]; // INIT, READY, PLAYING
+    RtspSession shown = null; // session with the highest state
+    for (RtspSession session : sessions) {
+      int state = session.getState();
+      count[state]++;
+      if (shown == null || state > shown.getState()) shown = session;
+    }
+    if (shown == null) {
+      stateLabel.setText("INIT");
+      return;
+    }
+    label.setText(shown.getStatus());
+    if (sessions.size() == 1) {
+      stateLabel.setText(new String[] {"INIT", "READY", "PLAY"}[shown.getState()]);
+    } else {
+      stateLabel.setText("INIT: " + count[0] + "  READY: " + count[1] + "  PLAY: " + count[2]
+          + "  " + getStatistics());
+    }
+  }
+
+  /**
+   * Statistics to compare the modes of the server: heap and threads per session, highest lateness
+   * of a frame of all sessions. The heap includes garbage not collected yet.
+   *
+   * @return Description of the resources used by the sessions
+   */
+  static String getStatistics() {
+    int count = 0;
+    long maxLateness = 0;
+    for (RtspSession session : sessions) {
+      count++;
+      maxLateness = Math.max(maxLateness, session.getMaxLateness());
+    }
+    Runtime runtime = Runtime.getRuntime();
+    long heap = runtime.totalMemory() - runtime.freeMemory();
+    return "Sessions: " + count
+        + "  heap: " + heap / (1024 * 1024) + " MB"
+        + (count == 0 ? "" : " (" + heap / 1024 / count + " KB/session)")
+        + "  threads: " + Thread.activeCount()
+        + "  max late: " + maxLateness + " µs";
+  }
+
   // ------------------------------------
   // main
   // ------------------------------------
   public static void main(String[] argv) throws Exception {
-    // create a Server object
-    Server theServer = new Server();
-    theServer.setSize(500, 200);
-    theServer.setVisible(true);
+    // create a Server object, not on a host without display, e.g. for load tests
+    if (!GraphicsEnvironment.isHeadless()) {
+      Server theServer = new Server();
+      theServer.setSize(500, 200);
+      theServer.setVisible(true);
+    } else {
+      Timer statistics = new Timer(STATISTICS_PERIOD, e -> {
+        if (!sessions.isEmpty()) System.out.println(getStatistics());
+      });
+      statistics.start();
+    }
+
+    // the header buffers are shared by all sessions, so leaks are only known when all are closed
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      sessions.forEach(RtspSession::close);
+      RtspSession.headerPool.reportLeaks();
+    }));
 
     // get RTSP socket port from the command line
     int RTSPport = Integer.parseInt(argv[0]);
+    if (MODE.equals("threads")) serveThreads(RTSPport);
+    else serve(RTSPport);
+  }
 
-    // Initiate TCP connection with the client for the RTSP session
-    ServerSocket listenSocket = new ServerSocket(RTSPport);
-    theServer.RTSPsocket = listenSocket.accept();
-    listenSocket.close();
-
-    // Get Client IP address
-    theServer.ClientIPAddr = theServer.RTSPsocket.getInetAddress();
-
-    // Initiate RTSPstate
-    state = INIT;
-    stateLabel.setText("INIT");
-
-
-    // Set input and output stream filters:
-    RTSPBufferedReader =
-            new BufferedReader(new InputStreamReader(theServer.RTSPsocket.getInputStream()));
-    RTSPBufferedWriter =
-            new BufferedWriter(new OutputStreamWriter(theServer.RTSPsocket.getOutputStream()));
-
-
-    int request_type;
+  /**
+   * Accepts RTSP connections and starts a thread for each, does not return
+   *
+   * @param port RTSP listening port
+   * @throws IOException if the port cannot be opened
+   */
+  static void serveThreads(int port) throws IOException {
+    ThreadFactory connectionThreads = VirtualThreads.newFactory("RTSP");
+    ThreadFactory pacerThreads = VirtualThreads.newFactory("Pacer");
+    ServerSocket listenSocket = new ServerSocket(port, BACKLOG);
+    System.out.println("RTSP Server listening on port " + port + " with "
+        + (VirtualThreads.isSupported() ? "virtual" : "platform") + " threads");
 
-    // loop to handle RTSP requests
     while (true) {
-      // parse the request
-      request_type = theServer.parse_RTSP_request(); // blocking
-
-      switch (request_type) {
-        case SETUP:
-          // Wait for the SETUP message from the client
-          state = READY;
-          stateLabel.setText("READY");
-          System.out.println("New RTSP state: READY");
-
-          // Send response
-          theServer.send_RTSP_response(SETUP);
-
-          // init the VideoStream object:
-          theServer.video = new VideoReader(VideoFileName);
-          imagenb = 0;
-
-          // init RTP socket and FEC
-          theServer.RTPsocket = new DatagramSocket();
-          theServer.fec = new FecHandler(startGroupSize);
-          break;
-
-        case PLAY:
-          if (state == READY) {
-            // send back response
-            theServer.send_RTSP_response(PLAY);
-            // start timer
-            theServer.timer.start();
-            // update state
-            state = PLAYING;
-            stateLabel.setText("PLAY");
-            System.out.println("New RTSP state: PLAYING");
-          }
-          break;
-
-        case PAUSE:
-          if (state == PLAYING) {
-            // send back response
-            theServer.send_RTSP_response(PAUSE);
-            // stop timer
-            theServer.timer.stop();
-            // update state
-            state = READY;
-            stateLabel.setText("READY");
-            System.out.println("New RTSP state: READY");
-          }
-          break;
-
-        case TEARDOWN:
-          state = INIT;
-          stateLabel.setText("INIT");
-          // send back response
-          theServer.send_RTSP_response(TEARDOWN);
-          // stop timer
-          theServer.timer.stop();
-          // close sockets
-          //theServer.RTSPsocket.close();
-          theServer.RTPsocket.close();
-          break;
-
-        case OPTIONS:
-          System.out.println("Options request");
-          theServer.send_RTSP_response(OPTIONS);
-          break;
-
-        case DESCRIBE:
-          System.out.println("DESCRIBE Request");
-          theServer.send_RTSP_response(DESCRIBE);
-          break;
+      Socket socket = listenSocket.accept();
+      try {
+        socket.setTcpNoDelay(true); // responses are small and awaited by the client
+        RtspSession session =
+            new RtspSession(socket.getInetAddress(), socket.getLocalAddress(), socket.getLocalPort());
+        session.setOwnScheduler(pacerThreads);
+        sessions.add(session);
+        connectionThreads.newThread(() -> runSession(socket, session)).start();
+        System.out.println("New RTSP connection from " + socket.getRemoteSocketAddress());
+      } catch (IOException | OutOfMemoryError ex) {
+        // e.g. no more threads, the other connections are kept
+        System.out.println("Exception caught: " + ex);
+        socket.close();
+      }
+    }
+  }
 
-        default:
-          System.out.println("Wrong request");
+  /** Handles the requests of one connection with blocking I/O until it is closed */
+  private static void runSession(Socket socket, RtspSession session) {
+    try (socket) {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      BufferedWriter writer =
+          new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+      while (true) {
+        session.handle_RTSP_request(reader, writer); // blocking
       }
+    } catch (IOException ex) {
+      System.out.println("RTSP connection closed: " + ex);
+    } finally {
+      session.dispose();
+      sessions.remove(session);
     }
   }
 
   /**
-   * Hander for timer
+   * Accepts RTSP connections and handles their requests, does not return
    *
-   * @param e ActionEvent
+   * @param port RTSP listening port
+   * @throws IOException if the port cannot be opened
    */
-  public void actionPerformed(ActionEvent e) {
-    imagenb++; // image counter
-    byte[] packet_bits;
-
-    try {
-      byte[] frame = video.readNextImage(); // get next frame
-      if (frame != null) {
-        System.out.println("Frame size: " + frame.length);
-
-        // Build RTP-JPEG RFC 2435
-        JpegFrame jpegFrame = JpegFrame.getFromJpegBytes(frame);
-        frame = jpegFrame.getAsRfc2435Bytes();
-
-        // Builds an RTPpacket object containing the frame
-        if (imagenb==4) System.out.println("server.java");
-        RTPpacket rtp_packet =
-                new RTPpacket(MJPEG_TYPE, imagenb, imagenb * FRAME_PERIOD, frame, frame.length);
-
-        // retrieve the packet bitstream as array of bytes
-        packet_bits = rtp_packet.getpacket();
-        // rtp_packet.printheader(); // Show header of bitstream if necessary
-        // rtp_packet.printpayload(8);
+  static void serve(int port) throws IOException {
+    Selector selector = Selector.open();
+    ServerSocketChannel listenChannel = ServerSocketChannel.open();
+    listenChannel.bind(new InetSocketAddress(port), BACKLOG);
+    listenChannel.configureBlocking(false);
+    listenChannel.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("RTSP Server listening on port " + port);
 
-        // send the packet as a DatagramPacket over the UDP socket
-        senddp = new DatagramPacket(packet_bits, packet_bits.length, ClientIPAddr, RTP_dest_port);
-
-        sendPacketWithError(senddp, false); // Send with packet loss
-
-        // FEC handling
-        fec.setRtp(rtp_packet);
-        if (fec.isReady()) {
-          System.out.println("FEC-Encoder ready...");
-          packet_bits = fec.getPacket();  // print Header
-          // fec.printHeaders();
-          // send to the FEC dest_port
-          senddp = new DatagramPacket(packet_bits, packet_bits.length, ClientIPAddr, FEC_dest_port);
-          sendPacketWithError(senddp, true);
+    while (true) {
+      selector.select();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) continue;
+        if (key.isAcceptable()) {
+          accept(listenChannel, selector);
+        } else {
+          ((Connection) key.attachment()).onReady();
         }
-
-        // update GUI
-        label.setText("Send frame #" + imagenb);
-      } else timer.stop();
-    } catch (Exception ex) {
-      System.out.println("Exception caught: " + ex);
-      ex.printStackTrace();
-      System.exit(0);
+      }
     }
   }
 
-  /**
-   * @param senddp Datagram to send
-   * @throws Exception Throws all
-   */
-  private void sendPacketWithError(DatagramPacket senddp, boolean fec) throws Exception {
-    String label;
-    if (fec) label = " fec ";
-    else label = " media ";
-    // TASK_F correct the if-instruction to work properly
-    if (random.nextDouble() > lossRate) {
-      System.out.println("Send frame: " + imagenb + label);
-      RTPsocket.send(senddp);
-    } else {
-      // System.err.println("Dropped frame: " + imagenb + label);
-      if (!fec) dropCounter++;
+  private static void accept(ServerSocketChannel listenChannel, Selector selector) {
+    SocketChannel channel = null;
+    try {
+      while ((channel = listenChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // responses are small and awaited by the client
+        Socket socket = channel.socket();
+        RtspSession session =
+            new RtspSession(socket.getInetAddress(), socket.getLocalAddress(), socket.getLocalPort());
+        Connection connection = new Connection(channel, session);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        sessions.add(session);
+        System.out.println("New RTSP connection from " + socket.getRemoteSocketAddress());
+      }
+    } catch (IOException ex) {
+      // e.g. too many open files, the other connections are kept
+      System.out.println("Exception caught: " + ex);
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
     }
-    System.out.println("Drop count media packets: " +  dropCounter);
   }
 
   /**
-   * Parse RTSP-Request
-   *
-   * @return RTSP-Request Type (SETUP, PLAY, etc.)
+   * Non-blocking RTSP connection of a session. Received bytes are collected until the empty line
+   * at the end of a request, then the request is handled by the session. Responses which cannot
+   * be written at once are kept until the channel is writable again.
    */
-  private int parse_RTSP_request() {
-    int request_type = -1;
-    try {
-      System.out.println("*** wait for RTSP-Request ***");
-      // parse request line and extract the request_type:
-      String RequestLine = RTSPBufferedReader.readLine();
-      System.out.println("RTSP Server - Received from Client:");
-      System.out.println(RequestLine);
-
-      StringTokenizer tokens = new StringTokenizer(RequestLine);
-      String request_type_string = tokens.nextToken();
+  static class Connection {
+    final SocketChannel channel;
+    final RtspSession session;
+    SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(1024); // received bytes, in write mode
+    final Deque<ByteBuffer> out = new ArrayDeque<>(); // responses not written yet
+
+    Connection(SocketChannel channel, RtspSession session) {
+      this.channel = channel;
+      this.session = session;
+    }
 
-      // convert to request_type structure:
-      switch ((request_type_string)) {
-        case "SETUP":
-          request_type = SETUP;
-          break;
-        case "PLAY":
-          request_type = PLAY;
-          break;
-        case "PAUSE":
-          request_type = PAUSE;
-          break;
-        case "TEARDOWN":
-          request_type = TEARDOWN;
-          break;
-        case "OPTIONS":
-          request_type = OPTIONS;
-          break;
-        case "DESCRIBE":
-          request_type = DESCRIBE;
-          break;
+    /** Reads and writes as far as the channel is ready, closes the connection on errors */
+    void onReady() {
+      try {
+        if (key.isReadable()) read();
+        if (key.isValid() && key.isWritable()) write();
+      } catch (IOException ex) {
+        System.out.println("RTSP connection closed: " + ex);
+        close();
       }
+    }
 
-      if (request_type == SETUP) {
-        // extract VideoFileName from RequestLine
-        String dir = tokens.nextToken();
-        //String[] tok = dir.split(".+?/(?=[^/]+$)");
-        String[] tok = dir.split("/");
-        //VideoFileName = VideoDir + tok[1];
-        VideoFileName = VideoDir + tok[3];
-        System.out.println("File: " + VideoFileName);
+    private void read() throws IOException {
+      if (!in.hasRemaining()) {
+        if (in.capacity() >= MAX_REQUEST) throw new IOException("RTSP request too long");
+        ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+        in.flip();
+        larger.put(in);
+        in = larger;
       }
-
-      // parse the SeqNumLine and extract CSeq field
-      String SeqNumLine = RTSPBufferedReader.readLine();
-      System.out.println(SeqNumLine);
-      tokens = new StringTokenizer(SeqNumLine);
-      tokens.nextToken();
-      RTSPSeqNb = Integer.parseInt(tokens.nextToken());
-
-      // get LastLine
-      String LastLine = RTSPBufferedReader.readLine();
-      System.out.println(LastLine);
-
-      if (request_type == SETUP) {
-        // extract RTP_dest_port after Char "="
-        RTP_dest_port = Integer.parseInt( LastLine.split("=")[1].split("-")[0] );
-        FEC_dest_port = RTP_dest_port + 0;
-        System.out.println("Client-Port: " + RTP_dest_port);
+      if (channel.read(in) < 0) throw new EOFException("end of stream");
+
+      int end;
+      while ((end = endOfRequest()) > 0) {
+        String request = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        in.flip().position(end);
+        in.compact();
+        handle(request.stripLeading());
       }
-      // else LastLine will be the SessionId line ... do not check for now.
-
-      // Read until end of request (empty line)
-      while (!LastLine.equals("")) {
-
-        System.out.println(LastLine);
-        LastLine = RTSPBufferedReader.readLine();
+    }
 
+    /** @return Length of the first complete request up to its empty line, 0 if incomplete */
+    private int endOfRequest() {
+      byte[] bytes = in.array();
+      int start = 0; // empty lines before the request line are skipped
+      while (start < in.position() && (bytes[start] == '\r' || bytes[start] == '\n')) start++;
+      for (int i = start + 1; i < in.position(); i++) {
+        if (bytes[i] != '\n') continue;
+        if (bytes[i - 1] == '\n') return i + 1;
+        if (i >= start + 2 && bytes[i - 1] == '\r' && bytes[i - 2] == '\n') return i + 1;
       }
-      System.out.println("*** End of Request ***\n");
-
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      System.out.println("Exception caught: " + ex);
-      System.exit(0);
+      return 0;
     }
-    return (request_type);
-  }
 
-  /**
-   * Send RTSP Response
-   *
-   * @param method RTSP-Method
-   */
-  private void send_RTSP_response(int method) {
-    System.out.println("*** send RTSP-Response ***");
-    try {
-      RTSPBufferedWriter.write("RTSP/1.0 200 OK" + CRLF);
-      RTSPBufferedWriter.write("CSeq: " + RTSPSeqNb + CRLF);
-
-      // 3th line depends on Request
-      if (method == OPTIONS) {
-        RTSPBufferedWriter.write(options() );
-      } else if (method == DESCRIBE) {
-        RTSPBufferedWriter.write(describe() );
+    private void handle(String request) throws IOException {
+      StringWriter response = new StringWriter();
+      session.handle_RTSP_request(new BufferedReader(new StringReader(request)), response);
+      if (response.getBuffer().length() == 0) return;
+      out.add(ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1)));
+      write();
+    }
 
-      } else {
-        RTSPBufferedWriter.write("Session: " + RTSP_ID + CRLF);
+    private void write() throws IOException {
+      while (!out.isEmpty()) {
+        channel.write(out.peek());
+        if (out.peek().hasRemaining()) break; // the socket buffer is full
+        out.poll();
       }
-
-      // Send end of response
-      if (method != DESCRIBE) RTSPBufferedWriter.write(CRLF);
-      RTSPBufferedWriter.flush();
-      System.out.println("*** RTSP-Server - Sent response to Client ***");
-
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      System.out.println("Exception caught: " + ex);
-      System.exit(0);
+      key.interestOps(out.isEmpty() ? SelectionKey.OP_READ
+          : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
     }
-  }
-
-  /** Creates a OPTIONS response string
-   * @return  Options string, starting with: Public: ...
-   */
-  //TASK_F Complete the OPTIONS response
-  private String options() {
-    return "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE" + CRLF;
-  }
 
-
-  /** Creates a DESCRIBE response string in SDP format for current media */
-  //TASK_F Complete the DESCRIBE response
-  private String describe() {
-    StringWriter rtspHeader = new StringWriter();
-    StringWriter rtspBody = new StringWriter();
-
-    // Write the body first so we can get the size later
-    rtspBody.write("v=0" + CRLF);
-    rtspBody.write("a=control:streamid=" + RTSP_ID + CRLF);
-    rtspBody.write("m=video 0 RTP/AVP 96" + CRLF);
-    rtspBody.write("m=audio 0 RTP/AVP 97" + CRLF);
-
-    rtspHeader.write("Content-Base: " + RTSPsocket.getLocalAddress() + ":" + RTSPsocket.getLocalPort() + CRLF);
-    rtspHeader.write("Content-Type: " + "application/sdp" + CRLF);
-    rtspHeader.write("Content-Length: " + rtspBody.getBuffer().length() + CRLF);
-    rtspHeader.write(CRLF);
-
-    return rtspHeader.toString() + rtspBody.toString();
+    /** Closes the connection and the session */
+    void close() {
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        System.out.println("Exception caught: " + ex);
+      }
+      session.dispose();
+      sessions.remove(session);
+    }
   }
 }
@@ -0,0 +1,77 @@
+/**
+ * Token bucket of one session, limits the send rate of its packets. Tokens are bytes, they
+ * accumulate with the rate up to the burst size. The bucket is checked before a packet is sent
+ * and charged with the bytes actually sent afterwards, so additional packets such as FEC are
+ * paid by the following packets.
+ *
+ * <p>The fill level is kept in bytes * 10^9, so the refill (ns * bytes/s) needs no division and
+ * no fraction of a token is lost. The bucket is not thread-safe, it is used by the pacer thread.
+ */
+public class TokenBucket {
+  private static final long NANOS = 1_000_000_000L;
+  private static final long MAX_REFILL_NANOS = NANOS; // bounds the products below 2^63
+
+  private long rate; // bytes per second
+  private final long burst; // bytes
+  private long level; // bytes * 10^9, negative after packets larger than the tokens
+  private long lastRefill; // ns
+
+  /**
+   * @param rate rate in bytes per second
+   * @param burst maximum number of bytes sent back-to-back
+   */
+  public TokenBucket(long rate, long burst) {
+    this.rate = Math.max(1, rate);
+    this.burst = burst;
+    this.level = burst * NANOS;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Changes the rate, the tokens accumulated so far are kept
+   *
+   * @param rate rate in bytes per second
+   * @param now current time from System.nanoTime()
+   */
+  public void setRate(long rate, long now) {
+    refill(now);
+    this.rate = Math.max(1, rate);
+  }
+
+  /** @return Rate in bytes per second */
+  public long getRate() {
+    return rate;
+  }
+
+  /** @return Burst size in bytes */
+  public long getBurst() {
+    return burst;
+  }
+
+  /**
+   * @param bytes number of bytes to send
+   * @param now current time from System.nanoTime()
+   * @return Time in ns until the bytes may be sent, 0 if they may be sent now
+   */
+  public long getDelay(long bytes, long now) {
+    refill(now);
+    long missing = Math.min(bytes, burst) * NANOS - level;
+    return missing <= 0 ? 0 : (missing + rate - 1) / rate;
+  }
+
+  /**
+   * Removes the tokens of sent bytes, the level may become negative
+   *
+   * @param bytes number of bytes sent
+   */
+  public void consume(long bytes) {
+    level -= bytes * NANOS;
+  }
+
+  private void refill(long now) {
+    long elapsed = Math.min(now - lastRefill, MAX_REFILL_NANOS);
+    if (elapsed <= 0) return;
+    level = Math.min(burst * NANOS, level + elapsed * rate);
+    lastRefill = now;
+  }
+}
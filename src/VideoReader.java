@@ -3,21 +3,49 @@ import static java.util.logging.Level.WARNING;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * Klasse zum Einlesen eines MJPEG-Videos.
  *
+ * <p>Der Input-Stream wird blockweise in einen wiederverwendeten Puffer gelesen, der nach
+ * Markeranfängen (0xFF) wortweise durchsucht wird. Damit eignet sich der Reader auch für Dateien,
+ * die zu groß für ein Mapping sind, sowie für Pipes.
+ *
  * @author Elisa Zschorlich (s70342)
  */
-public class VideoReader {
+public class VideoReader implements FrameSource {
+
+  // Größe der Blöcke, die vom Input-Stream gelesen werden.
+  private static final int BLOCK_SIZE = 256 * 1024;
+  // Ansicht auf ein Byte Array als long-Werte, um 8 Bytes auf einmal zu prüfen.
+  private static final VarHandle LONG_VIEW =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
 
-  private FileInputStream fileInputStream;
+  private final InputStream inputStream;
+  // Pfad des Videos, NULL bei Streams ohne wahlfreien Zugriff
+  private final String videoFilePath;
+  private FrameIndex frameIndex;
   private boolean isClosed = true;
 
+  // Zuletzt gelesener Block und die Position des nächsten ungelesenen Bytes darin
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private int blockPos;
+  private int blockLen;
+  // Puffer für die Bytes eines Bildes, inklusive SOI- und EOI-Marker. Wächst bei Bedarf.
+  private byte[] frame = new byte[BLOCK_SIZE];
+  private int frameLen;
+  // Nummer des zuletzt gelieferten Bildes
+  private int frameNumber = -1;
+
   /**
    * Initialisiert den Video-Reader inkl. File Input Stream.
    *
@@ -25,31 +53,31 @@ public class VideoReader {
    * @throws FileNotFoundException falls das Video nicht gefunden werden kann
    */
   public VideoReader(final String videoFilePath) throws FileNotFoundException {
-    // Öffnet den Input-Stream
-    this.fileInputStream =
-        new FileInputStream(videoFilePath) {
-
-          /** Schließe den Input-Stream und setze das entsprechende Flag. */
-          @Override
-          public void close() throws IOException {
-            isClosed = true;
-            super.close();
-          }
-
-          /** Prüft vor dem Lesen eines weiteren Bytes, ob der Input-Stream noch geöffnet ist. */
-          @Override
-          public int read(byte[] b, int off, int len) throws IOException {
-            return isClosed ? -1 : super.read(b, off, len);
-          }
-        };
+    this(new FileInputStream(videoFilePath), videoFilePath);
+  }
+
+  /**
+   * Initialisiert den Video-Reader mit einem beliebigen Input-Stream, z.B. einer Pipe.
+   *
+   * @param inputStream Stream, aus dem das Video gelesen wird
+   */
+  public VideoReader(final InputStream inputStream) {
+    this(inputStream, null);
+  }
+
+  private VideoReader(final InputStream inputStream, final String videoFilePath) {
+    this.inputStream = inputStream;
+    this.videoFilePath = videoFilePath;
     this.isClosed = false;
   }
 
   /** Schließt den Input-Stream, wenn dieser initialisiert und nicht geschlossen ist. */
+  @Override
   public void close() {
-    if (fileInputStream != null && !isClosed) {
+    if (inputStream != null && !isClosed) {
+      isClosed = true;
       try {
-        fileInputStream.close();
+        inputStream.close();
       } catch (IOException e) {
         Logger.getGlobal()
             .log(WARNING, "FileInputStream des VideoReader konnte nicht geschlossen werden.");
@@ -58,76 +86,165 @@ public class VideoReader {
   }
 
   /**
-   * Liest das nächste JPEG-Bild aus der MJPEG-Videodatei ein.
+   * Liest das nächste JPEG-Bild aus der MJPEG-Videodatei ein. Der gelieferte Buffer verweist auf
+   * den internen Bildpuffer und ist nur bis zum nächsten Aufruf gültig.
    *
-   * @return das eingelesene JPEG-Bild als Byte Array, falls dieses vollständig eingelesen werden
-   *     konnte, sonst NULL.
+   * @return das eingelesene JPEG-Bild, falls dieses vollständig eingelesen werden konnte, sonst
+   *     NULL.
    * @throws IOException IOException
    */
-  public byte[] readNextImage() throws IOException {
+  @Override
+  public ByteBuffer readNextFrame() throws IOException {
     // Prüft das der Input-Stream initialisiert und nicht geschlossen ist.
-    if (fileInputStream != null && !isClosed) {
-      // Puffer für die Bytes eines Bildes, inklusive SOI- und EOI-Marker.
-      final List<Byte> imageBytes = new ArrayList<>();
-      // Puffer für das nächste eingelesene Byte
-      final byte[] nxtByte = new byte[1];
-      // Zähler für enthaltene SOI-Marker, für die noch kein EOI gelesen wurde.
-      int soiCount = 0;
-      // Gibt an, ob ein Markeranfang (0xFF) gelesen wurde.
-      Byte markerStartBytes = null;
-
-      // Lese solange Bytes, bis das Dateiende erreicht ist.
-      while (fileInputStream.read(nxtByte, 0, nxtByte.length) != -1) {
-        final byte currentByte = nxtByte[0];
-
-        if (currentByte == JpegFrame.MARKER_TAG_START) {
-          // Marker startet (0xFF)
-          markerStartBytes = currentByte;
-        } else if (markerStartBytes != null) {
-          if (currentByte == JpegFrame.SOI_MARKER[1]) {
-            // SOI Marker (0xD8)
-            imageBytes.add(markerStartBytes);
-            soiCount++;
-          } else if (currentByte == JpegFrame.EOI_MARKER[1]) {
-            // EOI Marker (0xD9)
-            soiCount--;
-
-            if (soiCount == 0) {
-              // Ende des Bildes erreicht.
-              imageBytes.add(currentByte);
-              break;
-            }
-          }
-          markerStartBytes = null;
-        }
+    if (inputStream == null || isClosed) {
+      return null;
+    }
+    frameLen = 0;
+    // Zähler für enthaltene SOI-Marker, für die noch kein EOI gelesen wurde.
+    int soiCount = 0;
+    // Gibt an, ob ein Markeranfang (0xFF) gelesen wurde.
+    boolean markerStart = false;
 
-        // Kein Marker aber innerhalb des SOI
+    // Lese solange Blöcke, bis das Bild vollständig oder das Dateiende erreicht ist.
+    while (true) {
+      if (blockPos == blockLen && !fillBlock()) {
+        break;
+      }
+
+      if (!markerStart) {
+        // Springe zum nächsten Markeranfang, innerhalb des SOI werden alle Bytes übernommen.
+        final int markerPos = indexOfMarkerStart(block, blockPos, blockLen);
+        final int end = markerPos < 0 ? blockLen : markerPos + 1;
         if (soiCount > 0) {
-          // Nur Bytes innerhalb von SOI und EOI gehören zum Bild.
-          imageBytes.add(currentByte);
+          append(block, blockPos, end - blockPos);
         }
+        blockPos = end;
+        markerStart = markerPos >= 0;
+        continue;
       }
 
-      // Input-Stream wurde geschlossen oder es konnten keine Bytes gelesen werden.
-      if (this.isClosed || imageBytes.isEmpty()) {
-        return null;
+      final byte currentByte = block[blockPos++];
+      if (currentByte == JpegFrame.MARKER_TAG_START) {
+        // Füllbyte, der Marker beginnt erst mit dem letzten 0xFF
+        if (soiCount > 0) {
+          append(block, blockPos - 1, 1);
+        }
+        continue;
       }
+      markerStart = false;
 
-      // Transformiere Liste in ein Byte Array
-      final byte[] result = new byte[imageBytes.size()];
-      for (int i = 0; i < result.length; i++) {
-        result[i] = imageBytes.get(i);
+      if (currentByte == JpegFrame.SOI_MARKER[1]) {
+        // SOI Marker (0xD8)
+        if (soiCount == 0) {
+          append(JpegFrame.SOI_MARKER, 0, 1);
+        }
+        soiCount++;
+      } else if (currentByte == JpegFrame.EOI_MARKER[1] && soiCount > 0) {
+        // EOI Marker (0xD9)
+        soiCount--;
+        if (soiCount == 0) {
+          // Ende des Bildes erreicht.
+          append(block, blockPos - 1, 1);
+          break;
+        }
       }
-
-      // JPEG muss mit SOI beginnen und mit EOI enden
-      if (Arrays.equals(
-          JpegFrame.EOI_MARKER, Arrays.copyOfRange(result, result.length - 2, result.length))
-          && Arrays.equals(JpegFrame.SOI_MARKER, Arrays.copyOf(result, 2))) {
-        return result;
+      // Nur Bytes innerhalb von SOI und EOI gehören zum Bild.
+      if (soiCount > 0) {
+        append(block, blockPos - 1, 1);
       }
+    }
+
+    // Input-Stream wurde geschlossen oder das Bild ist unvollständig.
+    if (isClosed || frameLen == 0 || soiCount != 0) {
       return null;
-    } else {
-      return null;
     }
+    frameNumber++;
+    return ByteBuffer.wrap(frame, 0, frameLen);
+  }
+
+  @Override
+  public int getFrameNumber() {
+    return frameNumber;
+  }
+
+  /**
+   * Liefert den Index des Videos. Dieser wird beim ersten Aufruf aus der Sidecar-Datei geladen bzw.
+   * erstellt, bei Streams ohne Dateipfad gibt es keinen Index.
+   */
+  @Override
+  public FrameIndex getFrameIndex() throws IOException {
+    if (frameIndex == null && videoFilePath != null) {
+      frameIndex = FrameIndex.forFile(videoFilePath);
+    }
+    return frameIndex;
+  }
+
+  /**
+   * Setzt den File Channel auf den Anfang des Bildes laut Index, der gelesene Block wird verworfen.
+   */
+  @Override
+  public void seek(final int frameNb) throws IOException {
+    final FrameIndex index = getFrameIndex();
+    if (index == null || isClosed) {
+      throw new IOException("VideoReader kann nicht positioniert werden.");
+    }
+    final long offset =
+        frameNb < index.getFrameCount()
+            ? index.getOffset(frameNb)
+            : ((FileInputStream) inputStream).getChannel().size();
+    ((FileInputStream) inputStream).getChannel().position(offset);
+    blockPos = 0;
+    blockLen = 0;
+    frameNumber = frameNb - 1;
+  }
+
+  /**
+   * Liest den nächsten Block aus dem Input-Stream.
+   *
+   * @return true, falls Bytes gelesen wurden, false am Ende des Streams
+   * @throws IOException IOException
+   */
+  private boolean fillBlock() throws IOException {
+    if (isClosed) {
+      return false;
+    }
+    final int read = inputStream.read(block, 0, block.length);
+    blockPos = 0;
+    blockLen = Math.max(read, 0);
+    return read > 0;
+  }
+
+  /** Hängt Bytes an den Bildpuffer an und vergrößert diesen bei Bedarf. */
+  private void append(final byte[] src, final int off, final int len) {
+    if (frameLen + len > frame.length) {
+      frame = Arrays.copyOf(frame, Math.max(frame.length * 2, frameLen + len));
+    }
+    System.arraycopy(src, off, frame, frameLen, len);
+    frameLen += len;
+  }
+
+  /**
+   * Sucht den nächsten Markeranfang (0xFF), wobei jeweils 8 Bytes auf einmal geprüft werden.
+   *
+   * @param buf zu durchsuchender Puffer
+   * @param from erste zu prüfende Position
+   * @param to Position hinter dem letzten zu prüfenden Byte
+   * @return Position des Markeranfangs oder -1, falls keiner gefunden wurde
+   */
+  static int indexOfMarkerStart(final byte[] buf, int from, final int to) {
+    for (; from + Long.BYTES <= to; from += Long.BYTES) {
+      // Bytes mit 0xFF werden durch die Invertierung zu 0x00, deren Position liefert das High-Bit.
+      final long inverted = ~(long) LONG_VIEW.get(buf, from);
+      final long found = (inverted - ONES) & ~inverted & HIGH_BITS;
+      if (found != 0) {
+        return from + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
+    }
+    for (; from < to; from++) {
+      if (buf[from] == JpegFrame.MARKER_TAG_START) {
+        return from;
+      }
+    }
+    return -1;
   }
 }
@@ -0,0 +1,49 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads for the thread-per-session mode of the server. Virtual threads are used if the runtime
+ * provides them (Java 21, or 19 with --enable-preview), they are looked up by reflection, so the
+ * server still compiles and runs with Java 17. Otherwise platform threads with a small stack are
+ * used.
+ */
+public class VirtualThreads {
+  static final long PLATFORM_STACK_SIZE = 256 * 1024; // bytes, a session needs few frames
+
+  private VirtualThreads() {}
+
+  /** @return True, if the runtime supports virtual threads */
+  public static boolean isSupported() {
+    return virtualFactory("test") != null;
+  }
+
+  /**
+   * @param name prefix of the thread names
+   * @return Factory of virtual threads, or of daemon platform threads if not supported
+   */
+  public static ThreadFactory newFactory(String name) {
+    ThreadFactory factory = virtualFactory(name);
+    if (factory != null) return factory;
+    AtomicLong count = new AtomicLong();
+    return task -> {
+      Thread thread =
+          new Thread(null, task, name + "-" + count.getAndIncrement(), PLATFORM_STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** @return Thread.ofVirtual().name(name, 0).factory(), or null if not supported */
+  private static ThreadFactory virtualFactory(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Method setName = builderClass.getMethod("name", String.class, long.class);
+      builder = setName.invoke(builder, name + "-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      return null; // e.g. Java 17, or Java 19/20 without --enable-preview
+    }
+  }
+}
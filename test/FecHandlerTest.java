@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FecHandlerTest {
+
+  /** Frame of more packets than the FEC window, its first packets are cleared on delivery */
+  @Test
+  void getNextRtpListLongFrame() {
+    PacketBufferPool pool = new PacketBufferPool();
+    FecHandler receiver = new FecHandler(true);
+    int fragments = 60; // more than maxGroupSize + 1
+    for (int seq = 1; seq <= fragments + 1; seq++) {
+      int timestamp = seq <= fragments ? 40 : 80; // the last packet starts the next frame
+      RTPpacket rtp =
+          RTPpacket.build(pool.acquire(), FecHandler.MJPEG, seq, timestamp, ByteBuffer.allocate(8));
+      if (seq == fragments) rtp.setmarker(1);
+      receiver.rcvRtpPacket(rtp);
+    }
+
+    List<RTPpacket> frame = receiver.getNextRtpList();
+    assertNotNull(frame);
+    assertEquals(fragments, frame.size());
+    for (int i = 0; i < fragments; i++) {
+      assertEquals(i + 1, frame.get(i).getsequencenumber()); // not recycled by the receiver
+    }
+    frame.forEach(RTPpacket::release);
+    receiver.clear();
+    assertEquals(0, pool.getNrInUse());
+  }
+
+  /** First packet of a frame lost just after the overflow of the sequence numbers */
+  @Test
+  void getNextRtpListLostFirstAfterWrap() {
+    PacketBufferPool pool = new PacketBufferPool();
+    FecHandler receiver = new FecHandler(false);
+    int[] seqs = {65533, 65534, 65535, 1, 2, 3, 4}; // 0 is lost
+    int[] timestamps = {40, 40, 40, 80, 80, 80, 120};
+    for (int i = 0; i < seqs.length; i++) {
+      RTPpacket rtp =
+          RTPpacket.build(
+              pool.acquire(), FecHandler.MJPEG, seqs[i], timestamps[i], ByteBuffer.allocate(8));
+      if (seqs[i] == 65535 || seqs[i] == 3) rtp.setmarker(1);
+      receiver.rcvRtpPacket(rtp);
+    }
+
+    List<RTPpacket> first = receiver.getNextRtpList();
+    assertNotNull(first);
+    assertEquals(3, first.size());
+    first.forEach(RTPpacket::release);
+
+    List<RTPpacket> second = receiver.getNextRtpList();
+    assertNotNull(second);
+    assertEquals(3, second.size());
+    for (int i = 0; i < second.size(); i++) {
+      assertEquals(i + 1, second.get(i).getsequencenumber());
+    }
+    second.forEach(RTPpacket::release);
+    receiver.clear();
+    assertEquals(0, pool.getNrInUse());
+  }
+
+  /** A new group size does not change the group in progress */
+  @Test
+  void setFecGroupSizeAtGroupBoundary() {
+    FecHandler sender = new FecHandler(2);
+    byte[] buf = new byte[256];
+    sender.setRtp(new RTPpacket(FecHandler.MJPEG, 1, 40, ByteBuffer.allocate(8)));
+    sender.setFecGroupSize(3);
+    sender.setRtp(new RTPpacket(FecHandler.MJPEG, 2, 40, ByteBuffer.allocate(8)));
+    assertTrue(sender.isReady());
+    sender.getPacket(buf);
+
+    for (int seq = 3; seq <= 5; seq++) {
+      assertFalse(sender.isReady());
+      sender.setRtp(new RTPpacket(FecHandler.MJPEG, seq, 80, ByteBuffer.allocate(8)));
+    }
+    assertTrue(sender.isReady());
+    assertEquals(3, sender.getFecGroupSize());
+  }
+}